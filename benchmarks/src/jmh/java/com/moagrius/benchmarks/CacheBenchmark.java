@@ -0,0 +1,79 @@
+package com.moagrius.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of the whole memory cache under 1 to 8 threads sharing it: the single lock it used to have against
+ * MemoryCache's segments.  Segmenting only pays off when threads really run in parallel, so the higher thread counts
+ * mean little on a machine with fewer cores than that.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CacheBenchmark {
+
+  /**
+   * "locked" for the single lock, otherwise the number of segments.
+   */
+  @Param({"locked", "1", "16"})
+  public String cache;
+
+  private TileCache mCache;
+
+  @Setup
+  public void setUp() {
+    long budget = (long) Tiles.CAPACITY * StandInBitmap.TILE_BYTES;
+    mCache = "locked".equals(cache)
+        ? new LockedCache(budget, Tiles.COUNT, Tiles.COLUMNS)
+        : new SegmentedCache(budget, Integer.parseInt(cache), Tiles.COUNT, Tiles.COLUMNS);
+  }
+
+  // 80% get, 10% put, 10% remove: tiles look themselves up on every draw, go in when destroyed and come back out
+  private StandInBitmap mixed(Tiles tiles) {
+    int random = tiles.next();
+    int tile = Tiles.getTile(random);
+    switch (random % 10) {
+      case 0:
+        return mCache.put(tile, Tiles.getValue(random));
+      case 1:
+        return mCache.remove(tile);
+      default:
+        return mCache.get(tile);
+    }
+  }
+
+  @Benchmark
+  @Threads(1)
+  public StandInBitmap threads1(Tiles tiles) {
+    return mixed(tiles);
+  }
+
+  @Benchmark
+  @Threads(2)
+  public StandInBitmap threads2(Tiles tiles) {
+    return mixed(tiles);
+  }
+
+  @Benchmark
+  @Threads(4)
+  public StandInBitmap threads4(Tiles tiles) {
+    return mixed(tiles);
+  }
+
+  @Benchmark
+  @Threads(8)
+  public StandInBitmap threads8(Tiles tiles) {
+    return mixed(tiles);
+  }
+
+}
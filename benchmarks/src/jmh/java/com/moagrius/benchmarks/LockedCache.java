@@ -0,0 +1,61 @@
+package com.moagrius.benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The memory cache as it was before segmenting: string keys built the way tiles used to build them, one access-ordered
+ * LinkedHashMap and one lock around everything.
+ */
+public class LockedCache implements TileCache {
+
+  private static final int ZOOM = 14;
+  private static final int IMAGE_SAMPLE = 1;
+
+  private final LinkedHashMap<String, StandInBitmap> mMap = new LinkedHashMap<>(0, 0.75f, true);
+  private final String[] mKeys;
+  private final long mMaxSize;
+  private long mSize;
+
+  /**
+   * @param columns Tiles are laid out in rows this many columns wide.
+   */
+  public LockedCache(long maxSize, int tileCount, int columns) {
+    mMaxSize = maxSize;
+    // exactly as tiles built them, collisions between, e.g., 1,11 and 11,1 included
+    mKeys = new String[tileCount];
+    for (int i = 0; i < tileCount; i++) {
+      mKeys[i] = String.valueOf(i % columns) + String.valueOf(i / columns) + String.valueOf(IMAGE_SAMPLE) + String.valueOf(ZOOM);
+    }
+  }
+
+  @Override
+  public synchronized StandInBitmap get(int tile) {
+    return mMap.get(mKeys[tile]);
+  }
+
+  @Override
+  public synchronized StandInBitmap put(int tile, StandInBitmap value) {
+    mSize += value.getAllocationByteCount();
+    StandInBitmap previous = mMap.put(mKeys[tile], value);
+    if (previous != null) {
+      mSize -= previous.getAllocationByteCount();
+    }
+    while (mSize > mMaxSize && !mMap.isEmpty()) {
+      Map.Entry<String, StandInBitmap> oldest = mMap.entrySet().iterator().next();
+      mMap.remove(oldest.getKey());
+      mSize -= oldest.getValue().getAllocationByteCount();
+    }
+    return previous;
+  }
+
+  @Override
+  public synchronized StandInBitmap remove(int tile) {
+    StandInBitmap bitmap = mMap.remove(mKeys[tile]);
+    if (bitmap != null) {
+      mSize -= bitmap.getAllocationByteCount();
+    }
+    return bitmap;
+  }
+
+}
@@ -0,0 +1,72 @@
+package com.moagrius.benchmarks;
+
+import com.moagrius.tileview.TileKey;
+import com.moagrius.utils.LongLruMap;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The maps alone on one thread, with no locking: LongLruMap with packed keys against an access-ordered LinkedHashMap
+ * with the string keys tiles used to build.  90% get, 10% put, trimmed back to capacity after each put.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class MapBenchmark {
+
+  private final LongLruMap<StandInBitmap> mLongLruMap = new LongLruMap<>();
+  private final LinkedHashMap<String, StandInBitmap> mLinkedHashMap = new LinkedHashMap<>(0, 0.75f, true);
+  private final long[] mLongKeys = new long[Tiles.COUNT];
+  private final String[] mStringKeys = new String[Tiles.COUNT];
+
+  @Setup
+  public void setUp() {
+    for (int i = 0; i < Tiles.COUNT; i++) {
+      int column = i % Tiles.COLUMNS;
+      int row = i / Tiles.COLUMNS;
+      mLongKeys[i] = TileKey.pack(column, row, 14, 1);
+      mStringKeys[i] = String.valueOf(column) + String.valueOf(row) + String.valueOf(1) + String.valueOf(14);
+    }
+  }
+
+  @Benchmark
+  public StandInBitmap longLruMap(Tiles tiles) {
+    int random = tiles.next();
+    long key = mLongKeys[Tiles.getTile(random)];
+    if (random % 10 != 0) {
+      return mLongLruMap.get(key);
+    }
+    StandInBitmap previous = mLongLruMap.put(key, Tiles.getValue(random));
+    if (mLongLruMap.size() > Tiles.CAPACITY) {
+      mLongLruMap.removeEldest();
+    }
+    return previous;
+  }
+
+  @Benchmark
+  public StandInBitmap linkedHashMap(Tiles tiles) {
+    int random = tiles.next();
+    String key = mStringKeys[Tiles.getTile(random)];
+    if (random % 10 != 0) {
+      return mLinkedHashMap.get(key);
+    }
+    StandInBitmap previous = mLinkedHashMap.put(key, Tiles.getValue(random));
+    if (mLinkedHashMap.size() > Tiles.CAPACITY) {
+      Iterator<String> iterator = mLinkedHashMap.keySet().iterator();
+      iterator.next();
+      iterator.remove();
+    }
+    return previous;
+  }
+
+}
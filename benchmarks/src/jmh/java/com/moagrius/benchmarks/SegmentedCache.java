@@ -0,0 +1,106 @@
+package com.moagrius.benchmarks;
+
+import com.moagrius.tileview.TileKey;
+import com.moagrius.utils.LongLruMap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MemoryCache's get, put, remove and eviction, line for line, over the stand-in value type.  MemoryCache itself can't
+ * be loaded here since it's written against Bitmap and TileView; keep this in step with it when its locking changes.
+ */
+public class SegmentedCache implements TileCache {
+
+  private static final int ZOOM = 14;
+  private static final int IMAGE_SAMPLE = 1;
+
+  private final long[] mKeys;
+  private final Segment[] mSegments;
+  private final int mSegmentShift;
+  private final AtomicLong mSize = new AtomicLong();
+  private final AtomicInteger mEvictionCursor = new AtomicInteger();
+  private final long mMaxSize;
+
+  /**
+   * @param columns Tiles are laid out in rows this many columns wide.
+   */
+  public SegmentedCache(long maxSize, int segmentCount, int tileCount, int columns) {
+    mMaxSize = maxSize;
+    mKeys = new long[tileCount];
+    for (int i = 0; i < tileCount; i++) {
+      mKeys[i] = TileKey.pack(i % columns, i / columns, ZOOM, IMAGE_SAMPLE);
+    }
+    int count = segmentCount <= 1 ? 1 : Integer.highestOneBit(segmentCount - 1) << 1;
+    mSegments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      mSegments[i] = new Segment();
+    }
+    mSegmentShift = 32 - Integer.numberOfTrailingZeros(count);
+  }
+
+  private Segment getSegment(long key) {
+    int hash = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+    return mSegments.length == 1 ? mSegments[0] : mSegments[hash >>> mSegmentShift];
+  }
+
+  @Override
+  public StandInBitmap get(int tile) {
+    long key = mKeys[tile];
+    Segment segment = getSegment(key);
+    synchronized (segment) {
+      return segment.mMap.get(key);
+    }
+  }
+
+  @Override
+  public StandInBitmap put(int tile, StandInBitmap value) {
+    long key = mKeys[tile];
+    Segment segment = getSegment(key);
+    StandInBitmap previous;
+    synchronized (segment) {
+      previous = segment.mMap.put(key, value);
+    }
+    long delta = value.getAllocationByteCount() - (previous == null ? 0 : previous.getAllocationByteCount());
+    if (mSize.addAndGet(delta) > mMaxSize) {
+      trimToSize(mMaxSize);
+    }
+    return previous;
+  }
+
+  @Override
+  public StandInBitmap remove(int tile) {
+    long key = mKeys[tile];
+    Segment segment = getSegment(key);
+    StandInBitmap bitmap;
+    synchronized (segment) {
+      bitmap = segment.mMap.remove(key);
+    }
+    if (bitmap != null) {
+      mSize.addAndGet(-bitmap.getAllocationByteCount());
+    }
+    return bitmap;
+  }
+
+  private void trimToSize(long maxSize) {
+    int emptyInARow = 0;
+    while (mSize.get() > maxSize && emptyInARow < mSegments.length) {
+      Segment segment = mSegments[(mEvictionCursor.getAndIncrement() & Integer.MAX_VALUE) % mSegments.length];
+      StandInBitmap evicted;
+      synchronized (segment) {
+        evicted = segment.mMap.removeEldest();
+      }
+      if (evicted == null) {
+        emptyInARow++;
+        continue;
+      }
+      emptyInARow = 0;
+      mSize.addAndGet(-evicted.getAllocationByteCount());
+    }
+  }
+
+  private static class Segment {
+    final LongLruMap<StandInBitmap> mMap = new LongLruMap<>();
+  }
+
+}
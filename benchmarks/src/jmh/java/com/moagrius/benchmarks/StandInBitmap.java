@@ -0,0 +1,15 @@
+package com.moagrius.benchmarks;
+
+/**
+ * Takes the place of android.graphics.Bitmap, which can't be created on a desktop JVM.  Only the size accounting the
+ * caches do is kept, as for a 256x256 ARGB_8888 tile; there are no pixels.
+ */
+public final class StandInBitmap {
+
+  public static final int TILE_BYTES = 256 * 256 * 4;
+
+  public int getAllocationByteCount() {
+    return TILE_BYTES;
+  }
+
+}
@@ -0,0 +1,11 @@
+package com.moagrius.benchmarks;
+
+/**
+ * What the benchmarks call on a cache, given a tile's place in the working set.  Each cache builds the keys up front,
+ * the way tiles build theirs once and hold on to them, so lookups don't pay for building keys.
+ */
+public interface TileCache {
+  StandInBitmap get(int tile);
+  StandInBitmap put(int tile, StandInBitmap value);
+  StandInBitmap remove(int tile);
+}
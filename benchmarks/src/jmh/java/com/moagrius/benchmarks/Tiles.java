@@ -0,0 +1,54 @@
+package com.moagrius.benchmarks;
+
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Each benchmark thread's own stream of random tiles and operations, from a xorshift generator so picking one costs
+ * next to nothing and shares nothing between threads.
+ */
+@State(Scope.Thread)
+public class Tiles {
+
+  // a 32x32 grid, twice what the caches' budget holds, so puts keep evicting
+  public static final int COLUMNS = 32;
+  public static final int COUNT = COLUMNS * COLUMNS;
+  public static final int CAPACITY = COUNT / 2;
+
+  private static final StandInBitmap[] VALUES = new StandInBitmap[64];
+
+  static {
+    for (int i = 0; i < VALUES.length; i++) {
+      VALUES[i] = new StandInBitmap();
+    }
+  }
+
+  private int mState;
+
+  @Setup
+  public void setUp() {
+    mState = System.identityHashCode(this) | 1;
+  }
+
+  /**
+   * @return A non-negative random int.
+   */
+  public int next() {
+    int x = mState;
+    x ^= x << 13;
+    x ^= x >>> 17;
+    x ^= x << 5;
+    mState = x;
+    return x & Integer.MAX_VALUE;
+  }
+
+  public static int getTile(int random) {
+    return (random >>> 8) % COUNT;
+  }
+
+  public static StandInBitmap getValue(int random) {
+    return VALUES[random & (VALUES.length - 1)];
+  }
+
+}
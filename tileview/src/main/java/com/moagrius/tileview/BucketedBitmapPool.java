@@ -0,0 +1,207 @@
+package com.moagrius.tileview;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Color;
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of bitmaps no longer in use (evicted from the memory cache, or replaced in it), for tiles to decode into.
+ *
+ * Bitmaps are bucketed by config and allocation size class.  Size classes are 4 steps per power of 2, so a request
+ * only has to look in one or two buckets to find a bitmap that's large enough without wasting more than about half of
+ * it.  Acquire and release are both O(1).  The pool has its own byte budget, and bitmaps released once it's full are
+ * simply let go.
+ */
+public class BucketedBitmapPool implements TileView.BitmapPool {
+
+  private static final int STEPS_PER_POWER = 4;
+  private static final int SIZE_CLASS_COUNT = 32 * STEPS_PER_POWER;
+  // how many classes above the smallest fitting one to look in, each step up wastes a bit more of the allocation
+  private static final int CLASS_SEARCH_DEPTH = 2;
+
+  private final ArrayDeque<Bitmap>[][] mBuckets;
+  private final long mBudget;
+  private long mMaxSize;
+  private long mSize;
+  private volatile CacheStats mStats;
+
+  /**
+   * @param maxSize The most bytes of bitmaps to hold.
+   */
+  @SuppressWarnings("unchecked")
+  public BucketedBitmapPool(long maxSize) {
+    mBudget = mMaxSize = maxSize;
+    mBuckets = new ArrayDeque[Bitmap.Config.values().length][];
+  }
+
+  // the largest class whose lower bound is at most byteCount
+  private static int getFloorClass(int byteCount) {
+    int exponent = 31 - Integer.numberOfLeadingZeros(byteCount);
+    if (exponent < 2) {
+      return Math.max(0, byteCount);
+    }
+    int step = (byteCount >> (exponent - 2)) & (STEPS_PER_POWER - 1);
+    return exponent * STEPS_PER_POWER + step;
+  }
+
+  private static int getLowerBound(int sizeClass) {
+    int exponent = sizeClass / STEPS_PER_POWER;
+    if (exponent < 2) {
+      return sizeClass;
+    }
+    int step = sizeClass % STEPS_PER_POWER;
+    return (STEPS_PER_POWER + step) << (exponent - 2);
+  }
+
+  // the smallest class where everything is at least byteCount
+  private static int getCeilingClass(int byteCount) {
+    int sizeClass = getFloorClass(byteCount);
+    return getLowerBound(sizeClass) < byteCount ? sizeClass + 1 : sizeClass;
+  }
+
+  @SuppressWarnings("unchecked")
+  private ArrayDeque<Bitmap> getBucket(Bitmap.Config config, int sizeClass, boolean create) {
+    ArrayDeque<Bitmap>[] buckets = mBuckets[config.ordinal()];
+    if (buckets == null) {
+      if (!create) {
+        return null;
+      }
+      buckets = mBuckets[config.ordinal()] = new ArrayDeque[SIZE_CLASS_COUNT];
+    }
+    ArrayDeque<Bitmap> bucket = buckets[sizeClass];
+    if (bucket == null && create) {
+      bucket = buckets[sizeClass] = new ArrayDeque<>();
+    }
+    return bucket;
+  }
+
+  @Override
+  public Bitmap acquire(Bitmap.Config config, int byteCount) {
+    Bitmap bitmap = poll(config, byteCount);
+    CacheStats stats = mStats;
+    if (stats != null) {
+      if (bitmap == null) {
+        stats.recordMiss();
+      } else {
+        stats.recordHit();
+      }
+    }
+    return bitmap;
+  }
+
+  private synchronized Bitmap poll(Bitmap.Config config, int byteCount) {
+    int sizeClass = getCeilingClass(byteCount);
+    int last = Math.min(SIZE_CLASS_COUNT - 1, sizeClass + CLASS_SEARCH_DEPTH);
+    for (int i = sizeClass; i <= last; i++) {
+      ArrayDeque<Bitmap> bucket = getBucket(config, i, false);
+      if (bucket != null && !bucket.isEmpty()) {
+        Bitmap bitmap = bucket.pollLast();
+        mSize -= bitmap.getAllocationByteCount();
+        return bitmap;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public Bitmap getBitmapForReuse(Tile tile) {
+    BitmapFactory.Options options = tile.getMeasureOptions();
+    Bitmap.Config config = tile.getBitmapConfig();
+    int width = options.outWidth / options.inSampleSize;
+    int height = options.outHeight / options.inSampleSize;
+    Bitmap bitmap = acquire(config, width * height * getBytesPerPixel(config));
+    if (bitmap != null) {
+      bitmap.eraseColor(Color.BLACK);
+    }
+    return bitmap;
+  }
+
+  @Override
+  public void release(Bitmap bitmap) {
+    if (bitmap == null || bitmap.isRecycled() || !bitmap.isMutable() || bitmap.getConfig() == null) {
+      return;
+    }
+    int byteCount = bitmap.getAllocationByteCount();
+    CacheStats stats = mStats;
+    synchronized (this) {
+      if (mSize + byteCount > mMaxSize) {
+        if (stats != null) {
+          stats.recordEviction();
+        }
+        return;
+      }
+      if (stats != null) {
+        stats.recordPut(byteCount);
+      }
+      getBucket(bitmap.getConfig(), getFloorClass(byteCount), true).addLast(bitmap);
+      mSize += byteCount;
+    }
+  }
+
+  @Override
+  public void setStatsEnabled(boolean enabled) {
+    mStats = enabled ? new CacheStats() : null;
+  }
+
+  @Override
+  public CacheStats getStats() {
+    return mStats;
+  }
+
+  /**
+   * Shrinks (or restores) the byte budget to a fraction of what it was created with, letting bitmaps go as needed.
+   */
+  @Override
+  public synchronized void setBudgetFraction(float fraction) {
+    mMaxSize = (long) (mBudget * fraction);
+    // let the largest go first, they free the most per bitmap
+    for (int i = mBuckets.length - 1; i >= 0 && mSize > mMaxSize; i--) {
+      ArrayDeque<Bitmap>[] buckets = mBuckets[i];
+      if (buckets == null) {
+        continue;
+      }
+      for (int j = buckets.length - 1; j >= 0 && mSize > mMaxSize; j--) {
+        ArrayDeque<Bitmap> bucket = buckets[j];
+        while (bucket != null && !bucket.isEmpty() && mSize > mMaxSize) {
+          mSize -= bucket.pollFirst().getAllocationByteCount();
+        }
+      }
+    }
+  }
+
+  @Override
+  public synchronized void clear() {
+    for (ArrayDeque<Bitmap>[] buckets : mBuckets) {
+      if (buckets != null) {
+        for (ArrayDeque<Bitmap> bucket : buckets) {
+          if (bucket != null) {
+            bucket.clear();
+          }
+        }
+      }
+    }
+    mSize = 0;
+  }
+
+  public synchronized long getSize() {
+    return mSize;
+  }
+
+  public synchronized long getMaxSize() {
+    return mMaxSize;
+  }
+
+  private static int getBytesPerPixel(Bitmap.Config config) {
+    switch (config) {
+      case ARGB_8888:
+        return 4;
+      case RGB_565:
+      case ARGB_4444:
+        return 2;
+    }
+    return 1;
+  }
+
+}
@@ -0,0 +1,192 @@
+package com.moagrius.tileview;
+
+import android.os.SystemClock;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for a memory cache, disk cache or bitmap pool.  Caches only keep one of these once stats are enabled, so
+ * there's no cost (beyond a null check) when they're off.
+ *
+ * For a bitmap pool, a hit is a request for a bitmap that was satisfied, a miss is one that wasn't, a put is a bitmap
+ * released to the pool and an eviction is one the pool let go.
+ *
+ * Counters are cumulative.  For rates over a window, take a snapshot now and another later, and use
+ * later.since(earlier).
+ */
+public class CacheStats {
+
+  private final long mCreatedAt = SystemClock.uptimeMillis();
+  private final AtomicLong mHitCount = new AtomicLong();
+  private final AtomicLong mMissCount = new AtomicLong();
+  private final AtomicLong mPutCount = new AtomicLong();
+  private final AtomicLong mEvictionCount = new AtomicLong();
+  private final AtomicLong mBytesWritten = new AtomicLong();
+  private final AtomicLong mReadCount = new AtomicLong();
+  private final AtomicLong mReadNanos = new AtomicLong();
+  private final AtomicLong mWriteCount = new AtomicLong();
+  private final AtomicLong mWriteNanos = new AtomicLong();
+
+  public void recordHit() {
+    mHitCount.incrementAndGet();
+  }
+
+  public void recordMiss() {
+    mMissCount.incrementAndGet();
+  }
+
+  public void recordPut(long bytes) {
+    mPutCount.incrementAndGet();
+    mBytesWritten.addAndGet(bytes);
+  }
+
+  public void recordEviction() {
+    mEvictionCount.incrementAndGet();
+  }
+
+  public void recordRead(long nanos) {
+    mReadCount.incrementAndGet();
+    mReadNanos.addAndGet(nanos);
+  }
+
+  public void recordWrite(long nanos) {
+    mWriteCount.incrementAndGet();
+    mWriteNanos.addAndGet(nanos);
+  }
+
+  public Snapshot snapshot() {
+    return new Snapshot(
+        SystemClock.uptimeMillis() - mCreatedAt,
+        mHitCount.get(),
+        mMissCount.get(),
+        mPutCount.get(),
+        mEvictionCount.get(),
+        mBytesWritten.get(),
+        mReadCount.get(),
+        mReadNanos.get(),
+        mWriteCount.get(),
+        mWriteNanos.get());
+  }
+
+  public static class Snapshot {
+
+    private final long mElapsedMillis;
+    private final long mHitCount;
+    private final long mMissCount;
+    private final long mPutCount;
+    private final long mEvictionCount;
+    private final long mBytesWritten;
+    private final long mReadCount;
+    private final long mReadNanos;
+    private final long mWriteCount;
+    private final long mWriteNanos;
+
+    private Snapshot(long elapsedMillis, long hitCount, long missCount, long putCount, long evictionCount, long bytesWritten, long readCount, long readNanos, long writeCount, long writeNanos) {
+      mElapsedMillis = elapsedMillis;
+      mHitCount = hitCount;
+      mMissCount = missCount;
+      mPutCount = putCount;
+      mEvictionCount = evictionCount;
+      mBytesWritten = bytesWritten;
+      mReadCount = readCount;
+      mReadNanos = readNanos;
+      mWriteCount = writeCount;
+      mWriteNanos = writeNanos;
+    }
+
+    /**
+     * @param earlier A snapshot taken from the same stats before this one.
+     * @return The counts between the two snapshots, so rates are over that window.
+     */
+    public Snapshot since(Snapshot earlier) {
+      return new Snapshot(
+          mElapsedMillis - earlier.mElapsedMillis,
+          mHitCount - earlier.mHitCount,
+          mMissCount - earlier.mMissCount,
+          mPutCount - earlier.mPutCount,
+          mEvictionCount - earlier.mEvictionCount,
+          mBytesWritten - earlier.mBytesWritten,
+          mReadCount - earlier.mReadCount,
+          mReadNanos - earlier.mReadNanos,
+          mWriteCount - earlier.mWriteCount,
+          mWriteNanos - earlier.mWriteNanos);
+    }
+
+    /**
+     * @return Milliseconds this snapshot covers, from when stats were enabled or from the earlier snapshot.
+     */
+    public long getElapsedMillis() {
+      return mElapsedMillis;
+    }
+
+    public long getHitCount() {
+      return mHitCount;
+    }
+
+    public long getMissCount() {
+      return mMissCount;
+    }
+
+    public long getRequestCount() {
+      return mHitCount + mMissCount;
+    }
+
+    /**
+     * @return Hits over requests, from 0 to 1, or 0 if there were no requests.  For a pool, this is the reuse rate.
+     */
+    public float getHitRate() {
+      long requests = getRequestCount();
+      return requests == 0 ? 0 : (float) mHitCount / requests;
+    }
+
+    public long getPutCount() {
+      return mPutCount;
+    }
+
+    public long getEvictionCount() {
+      return mEvictionCount;
+    }
+
+    public long getBytesWritten() {
+      return mBytesWritten;
+    }
+
+    public float getAverageReadMillis() {
+      return mReadCount == 0 ? 0 : mReadNanos / 1e6f / mReadCount;
+    }
+
+    public float getAverageWriteMillis() {
+      return mWriteCount == 0 ? 0 : mWriteNanos / 1e6f / mWriteCount;
+    }
+
+    public float getRequestsPerSecond() {
+      return perSecond(getRequestCount());
+    }
+
+    public float getHitsPerSecond() {
+      return perSecond(mHitCount);
+    }
+
+    public float getEvictionsPerSecond() {
+      return perSecond(mEvictionCount);
+    }
+
+    public float getBytesWrittenPerSecond() {
+      return perSecond(mBytesWritten);
+    }
+
+    private float perSecond(long count) {
+      return mElapsedMillis <= 0 ? 0 : count * 1000f / mElapsedMillis;
+    }
+
+    @Override
+    public String toString() {
+      return "CacheStats{hits=" + mHitCount + ", misses=" + mMissCount + ", hitRate=" + getHitRate()
+          + ", puts=" + mPutCount + ", evictions=" + mEvictionCount + ", bytesWritten=" + mBytesWritten
+          + ", averageReadMillis=" + getAverageReadMillis() + ", averageWriteMillis=" + getAverageWriteMillis()
+          + ", elapsedMillis=" + mElapsedMillis + "}";
+    }
+
+  }
+
+}
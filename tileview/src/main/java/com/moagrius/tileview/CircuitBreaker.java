@@ -0,0 +1,118 @@
+package com.moagrius.tileview;
+
+import android.os.SystemClock;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracks failures opening streams from one tile source (a host, or a StreamProvider).  After enough failures in a
+ * row the circuit opens, and requests to that source fail fast rather than each waiting on a connection that's
+ * likely to fail too.  Once the open interval passes, a single trial request is let through: if it succeeds the
+ * circuit closes, otherwise it opens again for twice as long, up to a limit.
+ */
+public class CircuitBreaker {
+
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  private final int mFailureThreshold;
+  private final long mOpenInterval;
+  private final long mMaximumOpenInterval;
+
+  private final AtomicInteger mConsecutiveFailureCount = new AtomicInteger();
+  private final AtomicLong mFailureCount = new AtomicLong();
+  private final AtomicLong mSuccessCount = new AtomicLong();
+  private final AtomicLong mRejectedCount = new AtomicLong();
+  private final AtomicInteger mTripCount = new AtomicInteger();
+  private final AtomicBoolean mIsTrialInFlight = new AtomicBoolean();
+  private volatile long mOpenUntil;
+
+  public CircuitBreaker(int failureThreshold, long openInterval, long maximumOpenInterval) {
+    mFailureThreshold = failureThreshold;
+    mOpenInterval = openInterval;
+    mMaximumOpenInterval = maximumOpenInterval;
+  }
+
+  public State getState() {
+    if (mTripCount.get() == 0) {
+      return State.CLOSED;
+    }
+    return SystemClock.uptimeMillis() < mOpenUntil ? State.OPEN : State.HALF_OPEN;
+  }
+
+  /**
+   * @return True if a request to this source should be attempted, false if it should fail fast.
+   */
+  public boolean allowRequest() {
+    switch (getState()) {
+      case CLOSED:
+        return true;
+      case HALF_OPEN:
+        // only one request gets to find out if the source is back
+        if (mIsTrialInFlight.compareAndSet(false, true)) {
+          return true;
+        }
+        // fall through
+      default:
+        mRejectedCount.incrementAndGet();
+        return false;
+    }
+  }
+
+  public void onSuccess() {
+    mSuccessCount.incrementAndGet();
+    mConsecutiveFailureCount.set(0);
+    mTripCount.set(0);
+    mIsTrialInFlight.set(false);
+  }
+
+  public void onFailure() {
+    mFailureCount.incrementAndGet();
+    boolean wasTrial = mIsTrialInFlight.getAndSet(false);
+    if (mConsecutiveFailureCount.incrementAndGet() >= mFailureThreshold || wasTrial) {
+      int trips = mTripCount.incrementAndGet();
+      long interval = mOpenInterval << Math.min(trips - 1, 16);
+      mOpenUntil = SystemClock.uptimeMillis() + Math.min(mMaximumOpenInterval, interval);
+    }
+  }
+
+  /**
+   * @return How long until the circuit lets a request through, or 0 if it would now.
+   */
+  public long getRemainingOpenMillis() {
+    if (mTripCount.get() == 0) {
+      return 0;
+    }
+    return Math.max(0, mOpenUntil - SystemClock.uptimeMillis());
+  }
+
+  public long getFailureCount() {
+    return mFailureCount.get();
+  }
+
+  public int getConsecutiveFailureCount() {
+    return mConsecutiveFailureCount.get();
+  }
+
+  public long getSuccessCount() {
+    return mSuccessCount.get();
+  }
+
+  /**
+   * @return The number of requests that failed fast because the circuit was open.
+   */
+  public long getRejectedCount() {
+    return mRejectedCount.get();
+  }
+
+  public static class OpenException extends IOException {
+    public OpenException(Object source) {
+      super("Circuit is open for tile source " + source);
+    }
+  }
+
+}
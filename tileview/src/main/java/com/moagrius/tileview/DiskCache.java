@@ -7,42 +7,235 @@ import android.graphics.BitmapFactory;
 import android.util.Log;
 
 import com.jakewharton.disklrucache.DiskLruCache;
+import com.moagrius.tileview.io.Validators;
+import com.moagrius.utils.LongBloomFilter;
+import com.moagrius.utils.LongLruMap;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.util.HashSet;
-import java.util.Set;
+import java.nio.ByteBuffer;
 
 public class DiskCache implements TileView.BitmapCache {
 
+  /**
+   * How tiles are written to disk.  PNG is lossless but slow to encode and large for photographic tiles.  JPEG and WEBP
+   * use the quality setting (JPEG drops alpha).  RAW writes the pixels as they are in memory, so reading one back is a
+   * bulk copy with no decode at all, at the cost of the most disk space.
+   *
+   * Entries written with a different encoding (say, by a previous version of the app) are still read correctly.
+   */
+  public enum Encoding {
+    PNG, JPEG, WEBP, RAW
+  }
+
   private static final String DIRECTORY_NAME = "tileview-cache";
   private static final int IO_BUFFER_SIZE = 8 * 1024;
+  private static final int DEFAULT_QUALITY = 90;
+  // raw entries start with "TVRW", then width, height and config ordinal, then the pixels
+  private static final int RAW_MAGIC = 0x54565257;
+  private static final int RAW_HEADER_SIZE = 16;
+  // 2: keys are packed tile keys in hex (see TileKey), anything written with the old string keys is discarded
+  // 3: each entry has a second value, its validators (see Validators)
+  private static final int APP_VERSION = 3;
+  private static final int VALUE_COUNT = 2;
+  private static final int BITMAP_INDEX = 0;
+  private static final int VALIDATORS_INDEX = 1;
+  // DiskLruCache's journal, see loadIndex
+  private static final String JOURNAL_FILE = "journal";
+  private static final String JOURNAL_MAGIC = "libcore.io.DiskLruCache";
+  private static final int JOURNAL_HEADER_LINES = 5;
+  private static final String JOURNAL_CLEAN = "CLEAN";
+  private static final String JOURNAL_REMOVE = "REMOVE";
+  private static final int MINIMUM_FILTER_SIZE = 4096;
 
   private DiskLruCache mDiskCache;
-  private Set<String> mIndex = new HashSet<>();
+  // what's on disk, tile key to bytes, guarded by itself along with the filter
+  private final LongLruMap<Long> mIndex = new LongLruMap<>();
+  private LongBloomFilter mFilter;
+  private volatile CacheStats mStats;
+  private Encoding mEncoding = Encoding.PNG;
+  private int mQuality = DEFAULT_QUALITY;
+  private TileView.BitmapPool mBitmapPool;
+
+  // entries are read whole, so each thread keeps one buffer and grows it as needed
+  private final ThreadLocal<byte[][]> mReadBuffers = new ThreadLocal<byte[][]>() {
+    @Override
+    protected byte[][] initialValue() {
+      return new byte[1][IO_BUFFER_SIZE];
+    }
+  };
+  private final ThreadLocal<BitmapFactory.Options> mDecodeOptions = new ThreadLocal<BitmapFactory.Options>() {
+    @Override
+    protected BitmapFactory.Options initialValue() {
+      BitmapFactory.Options options = new BitmapFactory.Options();
+      options.inMutable = true;
+      return options;
+    }
+  };
+  // only the disk cache thread writes, but don't count on it
+  private final ThreadLocal<ByteBuffer[]> mRawWriteBuffers = new ThreadLocal<ByteBuffer[]>() {
+    @Override
+    protected ByteBuffer[] initialValue() {
+      return new ByteBuffer[1];
+    }
+  };
 
   public DiskCache(Context context, int size) throws IOException {
     File directory = new File(context.getCacheDir(), DIRECTORY_NAME);
-    mDiskCache = DiskLruCache.open(directory, 1, 1, size);
+    mDiskCache = DiskLruCache.open(directory, APP_VERSION, VALUE_COUNT, size);
+    loadIndex(directory);
+  }
+
+  /**
+   * DiskLruCache only keeps its entries in memory, and only answers for one by opening it.  Open has just replayed
+   * (or rewritten) the journal, so read it again for our own index: a CLEAN line is a readable entry and its length,
+   * a REMOVE line drops it.  A journal we can't read just leaves the index to fill as tiles are written.
+   */
+  private void loadIndex(File directory) {
+    BufferedReader reader = null;
+    try {
+      reader = new BufferedReader(new InputStreamReader(new FileInputStream(new File(directory, JOURNAL_FILE)), "US-ASCII"), IO_BUFFER_SIZE);
+      if (!JOURNAL_MAGIC.equals(reader.readLine())) {
+        return;
+      }
+      for (int i = 1; i < JOURNAL_HEADER_LINES; i++) {
+        reader.readLine();
+      }
+      String line;
+      while ((line = reader.readLine()) != null) {
+        readJournalLine(line);
+      }
+    } catch (IOException e) {
+      Log.d("TileView", "unable to read disk cache journal: " + e.getMessage());
+    } finally {
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          // no op
+        }
+      }
+      synchronized (mIndex) {
+        rebuildFilter();
+      }
+    }
+  }
+
+  private void readJournalLine(String line) {
+    int keyStart = line.indexOf(' ') + 1;
+    if (keyStart == 0) {
+      return;
+    }
+    int keyEnd = line.indexOf(' ', keyStart);
+    String operation = line.substring(0, keyStart - 1);
+    try {
+      long key = TileKey.fromDiskKey(keyEnd == -1 ? line.substring(keyStart) : line.substring(keyStart, keyEnd));
+      if (JOURNAL_CLEAN.equals(operation) && keyEnd != -1) {
+        // one length per value, the bitmap's is first
+        int lengthEnd = line.indexOf(' ', keyEnd + 1);
+        mIndex.put(key, Long.parseLong(lengthEnd == -1 ? line.substring(keyEnd + 1) : line.substring(keyEnd + 1, lengthEnd)));
+      } else if (JOURNAL_REMOVE.equals(operation)) {
+        mIndex.remove(key);
+      }
+    } catch (IllegalArgumentException e) {
+      // not one of ours (NumberFormatException is also an IllegalArgumentException)
+    }
+  }
+
+  // sized to twice what's on disk now, so it fills up slowly and is only rebuilt now and then
+  private void rebuildFilter() {
+    mFilter = new LongBloomFilter(Math.max(MINIMUM_FILTER_SIZE, mIndex.size() * 2));
+    for (long key : mIndex.keys()) {
+      mFilter.put(key);
+    }
+  }
+
+  private void addToIndex(long key, long bytes) {
+    synchronized (mIndex) {
+      mIndex.put(key, bytes);
+      mFilter.put(key);
+      if (mFilter.isSaturated()) {
+        rebuildFilter();
+      }
+    }
+  }
+
+  private void removeFromIndex(long key) {
+    synchronized (mIndex) {
+      mIndex.remove(key);
+    }
+  }
+
+  // the filter says no to nearly every tile that isn't on disk without a lookup, the index answers the rest
+  private boolean isIndexed(long key) {
+    synchronized (mIndex) {
+      return mFilter.mightContain(key) && mIndex.containsKey(key);
+    }
+  }
+
+  /**
+   * @param encoding How new entries are written.
+   * @param quality 0 to 100, only used by JPEG and WEBP.
+   */
+  public void setEncoding(Encoding encoding, int quality) {
+    mEncoding = encoding;
+    mQuality = quality;
+  }
+
+  /**
+   * RAW entries are copied into bitmaps from this pool when it has one to spare.
+   */
+  public void setBitmapPool(TileView.BitmapPool bitmapPool) {
+    mBitmapPool = bitmapPool;
+  }
+
+  @Override
+  public Bitmap put(long tileKey, Bitmap data) {
+    return put(tileKey, data, null);
   }
 
   @Override
-  public Bitmap put(String key, Bitmap data) {
-    if (contains(key)) {
+  public Bitmap put(long tileKey, Bitmap data, Validators validators) {
+    if (isIndexed(tileKey)) {
       return data;
     }
+    return write(tileKey, data, validators);
+  }
+
+  /**
+   * Editing an existing entry leaves its files readable until the commit, so the old copy is served until then.
+   */
+  @Override
+  public Bitmap replace(long tileKey, Bitmap data, Validators validators) {
+    return write(tileKey, data, validators);
+  }
+
+  private Bitmap write(long tileKey, Bitmap data, Validators validators) {
     DiskLruCache.Editor editor = null;
     try {
-      editor = mDiskCache.edit(key);
+      editor = mDiskCache.edit(TileKey.toDiskKey(tileKey));
       if (editor != null) {
-        if (writeBitmapToCache(data, editor)) {
-          mDiskCache.flush();
+        long start = System.nanoTime();
+        long bytesWritten = writeBitmapToCache(data, editor);
+        if (bytesWritten >= 0) {
+          // every value has to be written for a new entry, and a replaced one keeps no stale validators
+          editor.set(VALIDATORS_INDEX, validators == null ? "" : validators.toString());
+          // DiskLruCache writes and flushes a journal line here, so this costs a journal write per tile
           editor.commit();
-          mIndex.add(key);
+          addToIndex(tileKey, bytesWritten);
+          CacheStats stats = mStats;
+          if (stats != null) {
+            stats.recordWrite(System.nanoTime() - start);
+            stats.recordPut(bytesWritten);
+          }
         } else {
           editor.abort();
         }
@@ -60,17 +253,112 @@ public class DiskCache implements TileView.BitmapCache {
   }
 
   @Override
-  public Bitmap get(String key) {
+  public Bitmap get(long key) {
+    return get(key, null);
+  }
+
+  /**
+   * @return The validators stored with a tile, or null if it isn't on disk or was stored without them.
+   */
+  public Validators getValidators(long key) {
+    if (!isIndexed(key)) {
+      return null;
+    }
     DiskLruCache.Snapshot snapshot = null;
     try {
-      snapshot = mDiskCache.get(key);
+      snapshot = mDiskCache.get(TileKey.toDiskKey(key));
+      return snapshot == null ? null : Validators.fromString(snapshot.getString(VALIDATORS_INDEX));
+    } catch (IOException e) {
+      return null;
+    } finally {
+      if (snapshot != null) {
+        snapshot.close();
+      }
+    }
+  }
+
+  /**
+   * Replaces the validators stored with a tile that's already on disk, leaving the tile itself alone.  This is all a
+   * revalidation that found nothing changed costs.
+   */
+  public void setValidators(long key, Validators validators) {
+    if (!isIndexed(key)) {
+      return;
+    }
+    DiskLruCache.Editor editor = null;
+    try {
+      editor = mDiskCache.edit(TileKey.toDiskKey(key));
+      if (editor != null) {
+        editor.set(VALIDATORS_INDEX, validators.toString());
+        editor.commit();
+      }
+    } catch (IOException | IllegalStateException e) {
+      // IllegalStateException: it was evicted after all, and an entry can't be created without its bitmap
+      try {
+        if (editor != null) {
+          editor.abort();
+        }
+      } catch (IOException ignored) {
+        //
+      }
+    }
+  }
+
+  /**
+   * Reads a tile as if it had just been decoded for the requesting tile: in its bitmap config, at full size (entries
+   * are stored already sampled), and into a bitmap from the pool when there's one to spare.
+   */
+  @Override
+  public Bitmap get(long key, Tile tile) {
+    Entry entry = get(key, tile, false);
+    return entry == null ? null : entry.getBitmap();
+  }
+
+  /**
+   * Like get, but also reads the validators stored with the tile, from the same snapshot.
+   *
+   * @return The tile and its validators, or null if it isn't on disk.
+   */
+  public Entry getEntry(long key, Tile tile) {
+    return get(key, tile, true);
+  }
+
+  private Entry get(long key, Tile tile, boolean withValidators) {
+    long start = System.nanoTime();
+    Entry entry = read(key, tile, withValidators);
+    CacheStats stats = mStats;
+    if (stats != null) {
+      if (entry == null) {
+        stats.recordMiss();
+      } else {
+        stats.recordHit();
+        stats.recordRead(System.nanoTime() - start);
+      }
+    }
+    return entry;
+  }
+
+  private Entry read(long key, Tile tile, boolean withValidators) {
+    if (!isIndexed(key)) {
+      return null;
+    }
+    DiskLruCache.Snapshot snapshot = null;
+    try {
+      snapshot = mDiskCache.get(TileKey.toDiskKey(key));
       if (snapshot == null) {
+        // DiskLruCache trims to size on its own, without telling us
+        removeFromIndex(key);
         return null;
       }
-      InputStream inputStream = snapshot.getInputStream(0);
+      InputStream inputStream = snapshot.getInputStream(BITMAP_INDEX);
       if (inputStream != null) {
-        BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream, IO_BUFFER_SIZE);
-        return BitmapFactory.decodeStream(bufferedInputStream);
+        int length = (int) snapshot.getLength(BITMAP_INDEX);
+        byte[] data = readFully(inputStream, length);
+        Bitmap bitmap = isRaw(data, length) ? readRaw(data, length) : decode(data, length, tile);
+        if (bitmap == null) {
+          return null;
+        }
+        return new Entry(bitmap, withValidators ? readValidators(snapshot) : null);
       }
     } catch (IOException e) {
       // no op
@@ -82,11 +370,20 @@ public class DiskCache implements TileView.BitmapCache {
     return null;
   }
 
+  // the bitmap's already been read, so losing the validators shouldn't lose it too
+  private static Validators readValidators(DiskLruCache.Snapshot snapshot) {
+    try {
+      return Validators.fromString(snapshot.getString(VALIDATORS_INDEX));
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
   @Override
-  public Bitmap remove(String key) {
+  public Bitmap remove(long tileKey) {
     try {
-      mDiskCache.remove(key);
-      mIndex.remove(key);
+      mDiskCache.remove(TileKey.toDiskKey(tileKey));
+      removeFromIndex(tileKey);
     } catch (IOException e) {
       // no op
     }
@@ -94,8 +391,27 @@ public class DiskCache implements TileView.BitmapCache {
   }
 
   @Override
-  public boolean has(String key) {
-    return mIndex.contains(key);
+  public boolean has(long key) {
+    return isIndexed(key);
+  }
+
+  /**
+   * @return How many tiles the index knows to be on disk.
+   */
+  public int getIndexedCount() {
+    synchronized (mIndex) {
+      return mIndex.size();
+    }
+  }
+
+  @Override
+  public void setStatsEnabled(boolean enabled) {
+    mStats = enabled ? new CacheStats() : null;
+  }
+
+  @Override
+  public CacheStats getStats() {
+    return mStats;
   }
 
   /**
@@ -113,14 +429,158 @@ public class DiskCache implements TileView.BitmapCache {
     } catch (IOException e) {
       Log.d("TileView", "failed to delete disk cache: " + e.getMessage());
     }
+    synchronized (mIndex) {
+      mIndex.clear();
+      mFilter.clear();
+    }
+  }
+
+  private byte[] readFully(InputStream inputStream, int length) throws IOException {
+    byte[][] holder = mReadBuffers.get();
+    if (holder[0].length < length) {
+      holder[0] = new byte[length];
+    }
+    byte[] data = holder[0];
+    int offset = 0;
+    while (offset < length) {
+      int read = inputStream.read(data, offset, length - offset);
+      if (read == -1) {
+        throw new EOFException("Disk cache entry was shorter than its recorded length");
+      }
+      offset += read;
+    }
+    return data;
+  }
+
+  private Bitmap decode(byte[] data, int length, Tile tile) {
+    BitmapFactory.Options options = mDecodeOptions.get();
+    options.inSampleSize = 1;
+    options.inPreferredConfig = tile == null ? Bitmap.Config.ARGB_8888 : tile.getBitmapConfig();
+    options.inBitmap = tile == null || mBitmapPool == null ? null : mBitmapPool.getBitmapForReuse(tile);
+    try {
+      return BitmapFactory.decodeByteArray(data, 0, length, options);
+    } catch (IllegalArgumentException e) {
+      if (options.inBitmap == null) {
+        throw e;
+      }
+      // the pooled bitmap didn't fit after all (an edge tile written larger, say), put it back and allocate
+      mBitmapPool.release(options.inBitmap);
+      options.inBitmap = null;
+      return BitmapFactory.decodeByteArray(data, 0, length, options);
+    } finally {
+      options.inBitmap = null;
+    }
+  }
+
+  private static boolean isRaw(byte[] data, int length) {
+    return length >= RAW_HEADER_SIZE && ByteBuffer.wrap(data, 0, length).getInt(0) == RAW_MAGIC;
+  }
+
+  private Bitmap readRaw(byte[] data, int length) {
+    ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+    int width = buffer.getInt(4);
+    int height = buffer.getInt(8);
+    int ordinal = buffer.getInt(12);
+    Bitmap.Config[] configs = Bitmap.Config.values();
+    if (ordinal < 0 || ordinal >= configs.length || width <= 0 || height <= 0) {
+      return null;
+    }
+    Bitmap.Config config = configs[ordinal];
+    // a truncated entry, don't take a bitmap from the pool for it
+    if (length - RAW_HEADER_SIZE < (long) width * height * getBytesPerPixel(config)) {
+      return null;
+    }
+    Bitmap bitmap = obtainBitmap(width, height, config);
+    buffer.position(RAW_HEADER_SIZE);
+    if (buffer.remaining() < bitmap.getByteCount()) {
+      if (mBitmapPool != null) {
+        mBitmapPool.release(bitmap);
+      }
+      return null;
+    }
+    bitmap.copyPixelsFromBuffer(buffer);
+    return bitmap;
+  }
+
+  private Bitmap obtainBitmap(int width, int height, Bitmap.Config config) {
+    if (mBitmapPool != null) {
+      Bitmap bitmap = mBitmapPool.acquire(config, width * height * getBytesPerPixel(config));
+      if (bitmap != null) {
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height && bitmap.getConfig() == config) {
+          return bitmap;
+        }
+        try {
+          bitmap.reconfigure(width, height, config);
+          return bitmap;
+        } catch (IllegalArgumentException e) {
+          // it doesn't fit after all, put it back and fall through to allocation
+          mBitmapPool.release(bitmap);
+        }
+      }
+    }
+    return Bitmap.createBitmap(width, height, config);
+  }
+
+  private static int getBytesPerPixel(Bitmap.Config config) {
+    switch (config) {
+      case ARGB_8888:
+        return 4;
+      case RGB_565:
+      case ARGB_4444:
+        return 2;
+    }
+    return 1;
+  }
+
+  private static boolean canWriteRaw(Bitmap bitmap) {
+    Bitmap.Config config = bitmap.getConfig();
+    return config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_8888
+        || config == Bitmap.Config.ARGB_4444 || config == Bitmap.Config.ALPHA_8;
+  }
+
+  private void writeRaw(Bitmap bitmap, OutputStream outputStream) throws IOException {
+    int size = RAW_HEADER_SIZE + bitmap.getByteCount();
+    ByteBuffer[] holder = mRawWriteBuffers.get();
+    if (holder[0] == null || holder[0].capacity() < size) {
+      holder[0] = ByteBuffer.allocate(size);
+    }
+    ByteBuffer buffer = holder[0];
+    buffer.clear();
+    buffer.putInt(RAW_MAGIC).putInt(bitmap.getWidth()).putInt(bitmap.getHeight()).putInt(bitmap.getConfig().ordinal());
+    bitmap.copyPixelsToBuffer(buffer);
+    outputStream.write(buffer.array(), 0, buffer.position());
+  }
+
+  private boolean compress(Bitmap bitmap, OutputStream outputStream) throws IOException {
+    switch (mEncoding) {
+      case RAW:
+        if (canWriteRaw(bitmap)) {
+          writeRaw(bitmap, outputStream);
+          return true;
+        }
+        // fall back to lossless
+        return bitmap.compress(CompressFormat.PNG, 0, outputStream);
+      case JPEG:
+        return bitmap.compress(CompressFormat.JPEG, mQuality, outputStream);
+      case WEBP:
+        return bitmap.compress(CompressFormat.WEBP, mQuality, outputStream);
+      default:
+        return bitmap.compress(CompressFormat.PNG, 0, outputStream);
+    }
   }
 
-  private boolean writeBitmapToCache(Bitmap bitmap, DiskLruCache.Editor editor) {
+  // returns the number of bytes written, or -1 if it couldn't be written
+  private long writeBitmapToCache(Bitmap bitmap, DiskLruCache.Editor editor) {
     OutputStream outputStream = null;
     try {
-      outputStream = editor.newOutputStream(0);
-      outputStream = new BufferedOutputStream(outputStream, IO_BUFFER_SIZE);
-      return bitmap.compress(CompressFormat.PNG, 0, outputStream);
+      CountingOutputStream countingOutputStream = new CountingOutputStream(editor.newOutputStream(BITMAP_INDEX));
+      // raw pixels go out in one write, so only buffer the encoders
+      outputStream = mEncoding == Encoding.RAW ? countingOutputStream : new BufferedOutputStream(countingOutputStream, IO_BUFFER_SIZE);
+      if (!compress(bitmap, outputStream)) {
+        return -1;
+      }
+      outputStream.flush();
+      return countingOutputStream.mCount;
     } catch (Exception e) {
       // no op
     } finally {
@@ -132,23 +592,55 @@ public class DiskCache implements TileView.BitmapCache {
         // no op
       }
     }
-    return false;
+    return -1;
   }
 
-  private boolean contains(String key) {
-    boolean contained = false;
-    DiskLruCache.Snapshot snapshot = null;
-    try {
-      snapshot = mDiskCache.get(key);
-      contained = snapshot != null;
-    } catch (IOException e) {
-      // no op
-    } finally {
-      if (snapshot != null) {
-        snapshot.close();
-      }
+  /**
+   * A tile read from disk, with the validators it was stored with.
+   */
+  public static class Entry {
+
+    private final Bitmap mBitmap;
+    private final Validators mValidators;
+
+    Entry(Bitmap bitmap, Validators validators) {
+      mBitmap = bitmap;
+      mValidators = validators;
+    }
+
+    public Bitmap getBitmap() {
+      return mBitmap;
+    }
+
+    /**
+     * @return The validators, or null if the tile was stored without them.
+     */
+    public Validators getValidators() {
+      return mValidators;
+    }
+
+  }
+
+  private static class CountingOutputStream extends FilterOutputStream {
+
+    private long mCount;
+
+    CountingOutputStream(OutputStream out) {
+      super(out);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+      out.write(b);
+      mCount++;
     }
-    return contained;
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      mCount += len;
+    }
+
   }
 
 }
@@ -0,0 +1,208 @@
+package com.moagrius.tileview;
+
+import android.graphics.Bitmap;
+
+import com.moagrius.tileview.io.Validators;
+import com.moagrius.utils.LongLruMap;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes tiles to the disk cache behind the render threads, on a single thread of its own.
+ *
+ * Pending writes are bounded by count and by bytes.  When either limit is passed the oldest pending write is dropped,
+ * which only means that tile isn't on disk next time.
+ *
+ * A tile's own bitmap goes on to the memory cache and the bitmap pool once the tile is destroyed, where it may be drawn
+ * over by another decode long before its write comes up, so write takes a copy and only the copy is held until it's
+ * written.  Copies are extra memory, so the byte limit should come out of the memory budget (TileView.Builder takes it
+ * out of the memory cache's share) and it shrinks with it on memory pressure.
+ */
+public class DiskCacheWriter {
+
+  private static final int DEFAULT_MAXIMUM_PENDING_COUNT = 64;
+
+  private final TileView.BitmapCache mDiskCache;
+  // only ever holds the drain task, which runs until nothing is pending
+  private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(0, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+  private final LongLruMap<PendingWrite> mPending = new LongLruMap<>();
+  private final Runnable mDrain = this::drain;
+  private final long mBudget;
+  private final int mMaximumPendingCount;
+  private long mMaximumPendingBytes;
+  private long mPendingBytes;
+  private long mDroppedCount;
+  private boolean mIsDraining;
+  private volatile boolean mIsShutdown;
+
+  /**
+   * @param diskCache The cache to write to.
+   * @param maximumPendingBytes The most bytes of bitmaps to hold while they wait to be written.
+   * @param maximumPendingCount The most writes to hold, regardless of size.
+   */
+  public DiskCacheWriter(TileView.BitmapCache diskCache, long maximumPendingBytes, int maximumPendingCount) {
+    mDiskCache = diskCache;
+    mBudget = mMaximumPendingBytes = maximumPendingBytes;
+    mMaximumPendingCount = maximumPendingCount;
+  }
+
+  public DiskCacheWriter(TileView.BitmapCache diskCache, long maximumPendingBytes) {
+    this(diskCache, maximumPendingBytes, DEFAULT_MAXIMUM_PENDING_COUNT);
+  }
+
+  public void write(long key, Bitmap bitmap) {
+    write(key, bitmap, null);
+  }
+
+  /**
+   * Does nothing if the tile is already waiting to be written.  The bitmap is copied, so the caller is free to go on
+   * drawing it, and to hand it to the memory cache or pool.
+   *
+   * @param validators Stored with the tile so it can be revalidated later, may be null.
+   */
+  public void write(long key, Bitmap bitmap, Validators validators) {
+    if (mIsShutdown || isPending(key) || bitmap.getConfig() == null) {
+      return;
+    }
+    Bitmap copy = bitmap.copy(bitmap.getConfig(), false);
+    if (copy != null) {
+      enqueue(key, new PendingWrite(copy, validators, false));
+    }
+  }
+
+  /**
+   * Writes a tile that changed at its source over whatever is on disk for it, or waiting to be written.  The copy on
+   * disk stays readable until it's replaced.
+   *
+   * The bitmap isn't copied: the writer owns it from here, so nothing else may draw into it or pool it.
+   *
+   * @param validators Stored with the tile so it can be revalidated later, may be null.
+   */
+  public void replace(long key, Bitmap bitmap, Validators validators) {
+    enqueue(key, new PendingWrite(bitmap, validators, true));
+  }
+
+  private void enqueue(long key, PendingWrite write) {
+    if (mIsShutdown) {
+      return;
+    }
+    synchronized (this) {
+      PendingWrite previous = mPending.peek(key);
+      if (previous != null) {
+        if (!write.mIsReplacement) {
+          return;
+        }
+        mPending.remove(key);
+        mPendingBytes -= previous.mBitmap.getAllocationByteCount();
+      }
+      mPending.put(key, write);
+      mPendingBytes += write.mBitmap.getAllocationByteCount();
+      trim();
+      if (mIsDraining) {
+        return;
+      }
+      mIsDraining = true;
+    }
+    try {
+      mExecutor.execute(mDrain);
+    } catch (RejectedExecutionException e) {
+      synchronized (this) {
+        mIsDraining = false;
+      }
+    }
+  }
+
+  public synchronized boolean isPending(long key) {
+    return mPending.containsKey(key);
+  }
+
+  public synchronized int getPendingCount() {
+    return mPending.size();
+  }
+
+  public synchronized long getPendingBytes() {
+    return mPendingBytes;
+  }
+
+  /**
+   * @return How many writes were dropped to stay within limits since this writer was created.
+   */
+  public synchronized long getDroppedCount() {
+    return mDroppedCount;
+  }
+
+  /**
+   * Shrinks (or restores) the pending byte limit to a fraction of what it was created with, dropping the oldest
+   * pending writes as needed.
+   */
+  public synchronized void setBudgetFraction(float fraction) {
+    mMaximumPendingBytes = (long) (mBudget * fraction);
+    trim();
+  }
+
+  /**
+   * Drops anything pending and stops the writer thread.
+   *
+   * @param clearDiskCache Pass TRUE to clear the disk cache from the writer thread once any write in progress finishes.
+   */
+  public void shutdown(boolean clearDiskCache) {
+    mIsShutdown = true;
+    synchronized (this) {
+      mPending.clear();
+      mPendingBytes = 0;
+    }
+    if (clearDiskCache) {
+      mExecutor.execute(mDiskCache::clear);
+    }
+    mExecutor.shutdown();
+  }
+
+  private void trim() {
+    while (!mPending.isEmpty() && (mPending.size() > mMaximumPendingCount || mPendingBytes > mMaximumPendingBytes)) {
+      mPendingBytes -= mPending.removeEldest().mBitmap.getAllocationByteCount();
+      mDroppedCount++;
+    }
+  }
+
+  private void drain() {
+    while (!mIsShutdown) {
+      long key;
+      PendingWrite write;
+      synchronized (this) {
+        if (mPending.isEmpty()) {
+          mIsDraining = false;
+          break;
+        }
+        key = mPending.getEldestKey();
+        write = mPending.removeEldest();
+        mPendingBytes -= write.mBitmap.getAllocationByteCount();
+      }
+      if (!write.mBitmap.isRecycled()) {
+        // writes happen one at a time on this thread, so this can't race an earlier write of the same tile
+        if (write.mIsReplacement) {
+          mDiskCache.replace(key, write.mBitmap, write.mValidators);
+        } else {
+          mDiskCache.put(key, write.mBitmap, write.mValidators);
+        }
+      }
+    }
+  }
+
+  private static class PendingWrite {
+
+    private final Bitmap mBitmap;
+    private final Validators mValidators;
+    private final boolean mIsReplacement;
+
+    PendingWrite(Bitmap bitmap, Validators validators, boolean isReplacement) {
+      mBitmap = bitmap;
+      mValidators = validators;
+      mIsReplacement = isReplacement;
+    }
+
+  }
+
+}
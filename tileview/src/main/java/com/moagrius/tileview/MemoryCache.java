@@ -5,97 +5,257 @@ import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.os.Build;
 
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import com.moagrius.utils.LongLruMap;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Implementation of LRU cache (String to Bitmap) with a method to grab the oldest Bitmap.
+ * Implementation of LRU cache (packed tile key to Bitmap) with a method to grab the oldest Bitmap.
+ *
+ * The cache is split into segments by key, each an LRU with its own lock, so decode threads, the disk cache thread
+ * and the UI thread rarely wait on each other.  The size budget is shared: when a put goes over it, entries are evicted
+ * from the eldest end of each segment in turn, so eviction order is only approximately least recently used.
+ * Evicted bitmaps are released to the eviction pool, if there is one.
  */
 public class MemoryCache implements TileView.BitmapCache, TileView.BitmapPool {
 
-  private LinkedHashMap<String, Bitmap> mMap = new LinkedHashMap<>(0, 0.75f, true);
-  private int mMaxSize;
-  private int mSize;
+  private static final int DEFAULT_SEGMENT_COUNT = 16;
+
+  private final Segment[] mSegments;
+  private final int mSegmentShift;
+  private final AtomicLong mSize = new AtomicLong();
+  private final AtomicInteger mEvictionCursor = new AtomicInteger();
+  private final AtomicInteger mReuseCursor = new AtomicInteger();
+  private final TileView.BitmapPool mEvictionPool;
+  private final long mBudget;
+  private volatile long mMaxSize;
+  private volatile CacheStats mStats;
 
+  /**
+   * @param maxSize The size budget across all segments, in kilobytes.
+   */
   public MemoryCache(int maxSize) {
-    mMaxSize = maxSize;
+    this(maxSize, DEFAULT_SEGMENT_COUNT);
+  }
+
+  /**
+   * @param maxSize The size budget across all segments, in kilobytes.
+   * @param segmentCount Number of independently locked segments, rounded up to a power of 2.
+   */
+  public MemoryCache(int maxSize, int segmentCount) {
+    this(maxSize, segmentCount, null);
+  }
+
+  /**
+   * @param maxSize The size budget across all segments, in kilobytes.
+   * @param evictionPool Where evicted bitmaps go to be reused, or null to let them go.
+   */
+  public MemoryCache(int maxSize, TileView.BitmapPool evictionPool) {
+    this(maxSize, DEFAULT_SEGMENT_COUNT, evictionPool);
+  }
+
+  /**
+   * @param maxSize The size budget across all segments, in kilobytes.
+   * @param segmentCount Number of independently locked segments, rounded up to a power of 2.
+   * @param evictionPool Where evicted bitmaps go to be reused, or null to let them go.
+   */
+  public MemoryCache(int maxSize, int segmentCount, TileView.BitmapPool evictionPool) {
+    this(evictionPool, maxSize * 1024L, segmentCount);
+  }
+
+  public static MemoryCache withByteBudget(long maxBytes, TileView.BitmapPool evictionPool) {
+    return withByteBudget(maxBytes, DEFAULT_SEGMENT_COUNT, evictionPool);
+  }
+
+  /**
+   * Like the constructors, but with the budget in bytes, which is how sizes are accounted.
+   *
+   * @param maxBytes The size budget across all segments, in bytes.
+   * @param segmentCount Number of independently locked segments, rounded up to a power of 2.
+   * @param evictionPool Where evicted bitmaps go to be reused, or null to let them go.
+   */
+  public static MemoryCache withByteBudget(long maxBytes, int segmentCount, TileView.BitmapPool evictionPool) {
+    return new MemoryCache(evictionPool, maxBytes, segmentCount);
+  }
+
+  private MemoryCache(TileView.BitmapPool evictionPool, long maxBytes, int segmentCount) {
+    mBudget = mMaxSize = maxBytes;
+    mEvictionPool = evictionPool;
+    int count = segmentCount <= 1 ? 1 : Integer.highestOneBit(segmentCount - 1) << 1;
+    mSegments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      mSegments[i] = new Segment();
+    }
+    mSegmentShift = 32 - Integer.numberOfTrailingZeros(count);
+  }
+
+  // fibonacci hashing, take the top bits so neighbouring tiles spread across segments
+  private Segment getSegment(long key) {
+    int hash = (int) (key ^ (key >>> 32)) * 0x9E3779B9;
+    return mSegments.length == 1 ? mSegments[0] : mSegments[hash >>> mSegmentShift];
   }
 
   @Override
-  public synchronized Bitmap get(String key) {
-    return mMap.get(key);
+  public Bitmap get(long key) {
+    Segment segment = getSegment(key);
+    Bitmap bitmap;
+    synchronized (segment) {
+      bitmap = segment.mMap.get(key);
+    }
+    CacheStats stats = mStats;
+    if (stats != null) {
+      if (bitmap == null) {
+        stats.recordMiss();
+      } else {
+        stats.recordHit();
+      }
+    }
+    return bitmap;
   }
 
   @Override
-  public synchronized Bitmap put(String key, Bitmap value) {
+  public Bitmap put(long key, Bitmap value) {
     if (value == null) {
       return null;
     }
     if (value.getConfig() == null) {
       return null;
     }
-    mSize += sizeOf(value);
-    Bitmap previous = mMap.put(key, value);
-    if (previous != null) {
-      mSize -= sizeOf(previous);
+    Segment segment = getSegment(key);
+    Bitmap previous;
+    synchronized (segment) {
+      previous = segment.mMap.put(key, value);
+    }
+    long delta = sizeOf(value) - (previous == null ? 0 : sizeOf(previous));
+    CacheStats stats = mStats;
+    if (stats != null) {
+      stats.recordPut(sizeOf(value));
+    }
+    if (mSize.addAndGet(delta) > mMaxSize) {
+      trimToSize(mMaxSize);
     }
-    trimToSize(mMaxSize);
     return previous;
   }
 
   @Override
-  public synchronized Bitmap remove(String key) {
-    if (mMap.containsKey(key)) {
-      Bitmap bitmap = mMap.get(key);
-      mSize -= sizeOf(bitmap);
-      mMap.remove(key);
-      return bitmap;
+  public Bitmap remove(long key) {
+    Segment segment = getSegment(key);
+    Bitmap bitmap;
+    synchronized (segment) {
+      bitmap = segment.mMap.remove(key);
     }
-    return null;
+    if (bitmap != null) {
+      mSize.addAndGet(-sizeOf(bitmap));
+    }
+    // tiles take their bitmap out of the cache rather than getting it, so count lookups here too
+    CacheStats stats = mStats;
+    if (stats != null) {
+      if (bitmap == null) {
+        stats.recordMiss();
+      } else {
+        stats.recordHit();
+      }
+    }
+    return bitmap;
   }
 
   @Override
-  public boolean has(String key) {
-    return mMap.containsKey(key);
+  public boolean has(long key) {
+    Segment segment = getSegment(key);
+    synchronized (segment) {
+      return segment.mMap.containsKey(key);
+    }
+  }
+
+  @Override
+  public void clear() {
+    for (Segment segment : mSegments) {
+      synchronized (segment) {
+        while (!segment.mMap.isEmpty()) {
+          mSize.addAndGet(-sizeOf(segment.mMap.removeEldest()));
+        }
+      }
+    }
   }
 
   @Override
-  public synchronized void clear() {
-    mMap.clear();
-    mSize = 0;
+  public void setStatsEnabled(boolean enabled) {
+    mStats = enabled ? new CacheStats() : null;
   }
 
-  private void trimToSize(int maxSize) {
-    while (mSize > maxSize && !mMap.isEmpty()) {
-      Map.Entry<String, Bitmap> oldest =  mMap.entrySet().iterator().next();
-      if (oldest == null) {
-        break;
+  @Override
+  public CacheStats getStats() {
+    return mStats;
+  }
+
+  /**
+   * Shrinks (or restores) the size budget to a fraction of what it was created with, evicting as needed.
+   */
+  @Override
+  public void setBudgetFraction(float fraction) {
+    mMaxSize = (long) (mBudget * fraction);
+    trimToSize(mMaxSize);
+  }
+
+  /**
+   * @return The size of everything cached, in bytes.
+   */
+  public long getSize() {
+    return mSize.get();
+  }
+
+  /**
+   * @return The current size budget, in bytes.
+   */
+  public long getMaxSize() {
+    return mMaxSize;
+  }
+
+  // takes one segment lock at a time, never while holding another
+  private void trimToSize(long maxSize) {
+    int emptyInARow = 0;
+    while (mSize.get() > maxSize && emptyInARow < mSegments.length) {
+      Segment segment = mSegments[(mEvictionCursor.getAndIncrement() & Integer.MAX_VALUE) % mSegments.length];
+      Bitmap evicted;
+      synchronized (segment) {
+        evicted = segment.mMap.removeEldest();
+      }
+      if (evicted == null) {
+        emptyInARow++;
+        continue;
+      }
+      emptyInARow = 0;
+      mSize.addAndGet(-sizeOf(evicted));
+      CacheStats stats = mStats;
+      if (stats != null) {
+        stats.recordEviction();
+      }
+      if (mEvictionPool != null) {
+        mEvictionPool.release(evicted);
       }
-      mMap.remove(oldest.getKey());
-      mSize -= sizeOf(oldest.getValue());
     }
   }
 
-  private int sizeOf(Bitmap bitmap) {
-    return bitmap.getByteCount() / 1024;
+  // what the bitmap actually holds in memory, which for a reused bitmap can be more than its current dimensions need
+  private static long sizeOf(Bitmap bitmap) {
+    return bitmap.getAllocationByteCount();
   }
 
   @Override
-  public synchronized Bitmap getBitmapForReuse(Tile tile) {
-    if (mMap.isEmpty()) {
-      return null;
-    }
+  public Bitmap getBitmapForReuse(Tile tile) {
     BitmapFactory.Options options = tile.getMeasureOptions();
-    Iterator<Bitmap> iterator = mMap.values().iterator();
-    while (iterator.hasNext()) {
-      Bitmap candidate = iterator.next();
-      if (candidate == null) {
-        break;
+    LongLruMap.Matcher<Bitmap> matcher = bitmap -> qualifies(bitmap, options);
+    // start somewhere different each time, so reuse doesn't always drain the same segment
+    int start = mReuseCursor.getAndIncrement() & Integer.MAX_VALUE;
+    for (int i = 0; i < mSegments.length; i++) {
+      Segment segment = mSegments[(start + i) % mSegments.length];
+      Bitmap candidate;
+      synchronized (segment) {
+        candidate = segment.mMap.removeEldestMatching(matcher);
       }
-      if (qualifies(candidate, options)) {
-        iterator.remove();
-        mSize -= sizeOf(candidate);
+      if (candidate != null) {
+        mSize.addAndGet(-sizeOf(candidate));
         candidate.eraseColor(Color.BLACK);
         return candidate;
       }
@@ -103,6 +263,10 @@ public class MemoryCache implements TileView.BitmapCache, TileView.BitmapPool {
     return null;
   }
 
+  private static class Segment {
+    final LongLruMap<Bitmap> mMap = new LongLruMap<>();
+  }
+
   private static boolean qualifies(Bitmap candidate, BitmapFactory.Options targetOptions) {
     if (!candidate.isMutable()) {
       return false;
@@ -0,0 +1,133 @@
+package com.moagrius.tileview;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.view.MotionEvent;
+import android.view.VelocityTracker;
+import android.view.ViewConfiguration;
+import android.widget.OverScroller;
+
+/**
+ * Tracks how the TileView is moving, so tiles can be scheduled ahead of where it's going.
+ *
+ * Velocity is measured from scroll changes (so it includes flings and programmatic scrolls), in scroll direction:
+ * positive x means the viewport is moving right.  When a touch ends in a fling, the settle point is predicted by
+ * running the same fling through a separate OverScroller.
+ */
+public class MotionPredictor {
+
+  // if we haven't seen a scroll change in this long, we're not moving
+  private static final long STALE_INTERVAL = 100;
+  // weight of the newest sample in the smoothed velocity
+  private static final float SMOOTHING = 0.5f;
+  private static final int VELOCITY_UNITS = 1000;
+
+  private final OverScroller mPredictor;
+  private final int mMinimumFlingVelocity;
+  private final int mMaximumFlingVelocity;
+
+  private VelocityTracker mVelocityTracker;
+
+  private int mLastScrollX;
+  private int mLastScrollY;
+  private long mLastScrollTime;
+  private float mVelocityX;
+  private float mVelocityY;
+
+  private boolean mIsFlinging;
+  private int mFlingFinalX;
+  private int mFlingFinalY;
+
+  public MotionPredictor(Context context) {
+    mPredictor = new OverScroller(context);
+    ViewConfiguration configuration = ViewConfiguration.get(context);
+    mMinimumFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+    mMaximumFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+  }
+
+  public void onScrollChanged(int x, int y) {
+    long now = SystemClock.uptimeMillis();
+    long elapsed = now - mLastScrollTime;
+    if (elapsed > STALE_INTERVAL) {
+      mVelocityX = 0;
+      mVelocityY = 0;
+    } else if (elapsed > 0) {
+      float velocityX = (x - mLastScrollX) * 1000f / elapsed;
+      float velocityY = (y - mLastScrollY) * 1000f / elapsed;
+      mVelocityX += (velocityX - mVelocityX) * SMOOTHING;
+      mVelocityY += (velocityY - mVelocityY) * SMOOTHING;
+    }
+    mLastScrollX = x;
+    mLastScrollY = y;
+    mLastScrollTime = now;
+    if (mIsFlinging && x == mFlingFinalX && y == mFlingFinalY) {
+      mIsFlinging = false;
+    }
+  }
+
+  /**
+   * @param event The touch event received by the TileView.
+   * @param maxScrollX The largest x the TileView can scroll to at the current scale.
+   * @param maxScrollY The largest y the TileView can scroll to at the current scale.
+   */
+  public void onTouchEvent(MotionEvent event, int maxScrollX, int maxScrollY) {
+    if (mVelocityTracker == null) {
+      mVelocityTracker = VelocityTracker.obtain();
+    }
+    mVelocityTracker.addMovement(event);
+    switch (event.getActionMasked()) {
+      case MotionEvent.ACTION_DOWN:
+        mIsFlinging = false;
+        break;
+      case MotionEvent.ACTION_UP:
+        mVelocityTracker.computeCurrentVelocity(VELOCITY_UNITS, mMaximumFlingVelocity);
+        // the finger moves opposite to the scroll
+        int velocityX = (int) -mVelocityTracker.getXVelocity();
+        int velocityY = (int) -mVelocityTracker.getYVelocity();
+        if (Math.abs(velocityX) > mMinimumFlingVelocity || Math.abs(velocityY) > mMinimumFlingVelocity) {
+          mPredictor.fling(mLastScrollX, mLastScrollY, velocityX, velocityY, 0, maxScrollX, 0, maxScrollY);
+          mFlingFinalX = mPredictor.getFinalX();
+          mFlingFinalY = mPredictor.getFinalY();
+          mPredictor.forceFinished(true);
+          mIsFlinging = true;
+        }
+        // fall through
+      case MotionEvent.ACTION_CANCEL:
+        mVelocityTracker.recycle();
+        mVelocityTracker = null;
+        break;
+    }
+  }
+
+  public float getVelocityX() {
+    return isMoving() ? mVelocityX : 0;
+  }
+
+  public float getVelocityY() {
+    return isMoving() ? mVelocityY : 0;
+  }
+
+  public float getSpeed() {
+    return (float) Math.hypot(getVelocityX(), getVelocityY());
+  }
+
+  public boolean isMoving() {
+    return SystemClock.uptimeMillis() - mLastScrollTime <= STALE_INTERVAL;
+  }
+
+  /**
+   * @return True if the last touch ended in a fling that hasn't settled yet.
+   */
+  public boolean isFlinging() {
+    return mIsFlinging && isMoving();
+  }
+
+  public int getFlingFinalX() {
+    return mFlingFinalX;
+  }
+
+  public int getFlingFinalY() {
+    return mFlingFinalY;
+  }
+
+}
@@ -0,0 +1,110 @@
+package com.moagrius.tileview;
+
+import android.content.Context;
+import android.graphics.BitmapRegionDecoder;
+
+import com.moagrius.tileview.io.StreamProvider;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Used with TileView.SourceMode.SINGLE_IMAGE, where each Detail's data points at one large image rather than a
+ * set of tiles.  Tiles are cut out of that image on demand with BitmapRegionDecoder.
+ *
+ * BitmapRegionDecoder serializes decodeRegion calls on a single instance, so each decode thread opens and keeps
+ * its own decoder per Detail, rather than sharing one across the pool.
+ *
+ * Decoders are only used between acquire and release.  Render threads may still be decoding when the TileView is
+ * destroyed, so clear only recycles the decoders once the last of them has released, and acquire fails after that.
+ */
+public class RegionDecoderCache {
+
+  // the column and row passed to the StreamProvider when opening the single image for a Detail
+  // the stock providers use String.format, which ignores arguments without a matching specifier
+  private static final int SOURCE_COLUMN = 0;
+  private static final int SOURCE_ROW = 0;
+
+  private final ThreadLocal<Map<Object, BitmapRegionDecoder>> mDecoders = new ThreadLocal<Map<Object, BitmapRegionDecoder>>() {
+    @Override
+    protected Map<Object, BitmapRegionDecoder> initialValue() {
+      return new HashMap<>();
+    }
+  };
+
+  // every decoder opened by any thread, so they can all be released from one place
+  private final List<BitmapRegionDecoder> mOpenedDecoders = new ArrayList<>();
+  // guarded by mOpenedDecoders
+  private int mActiveCount;
+  private boolean mIsCleared;
+
+  /**
+   * Call before getDecoder, and call release when done with the decoder, whatever happens.
+   *
+   * @return False if the cache has been cleared, in which case don't decode and don't call release.
+   */
+  public boolean acquire() {
+    synchronized (mOpenedDecoders) {
+      if (mIsCleared) {
+        return false;
+      }
+      mActiveCount++;
+      return true;
+    }
+  }
+
+  public void release() {
+    synchronized (mOpenedDecoders) {
+      mActiveCount--;
+      if (mIsCleared && mActiveCount == 0) {
+        recycleDecoders();
+      }
+    }
+  }
+
+  public BitmapRegionDecoder getDecoder(StreamProvider streamProvider, Context context, Object data) throws Exception {
+    Map<Object, BitmapRegionDecoder> decoders = mDecoders.get();
+    BitmapRegionDecoder decoder = decoders.get(data);
+    if (decoder != null && !decoder.isRecycled()) {
+      return decoder;
+    }
+    InputStream stream = streamProvider.getStream(SOURCE_COLUMN, SOURCE_ROW, context, data);
+    if (stream == null) {
+      return null;
+    }
+    try {
+      decoder = BitmapRegionDecoder.newInstance(stream, false);
+    } finally {
+      stream.close();
+    }
+    decoders.put(data, decoder);
+    synchronized (mOpenedDecoders) {
+      mOpenedDecoders.add(decoder);
+    }
+    return decoder;
+  }
+
+  /**
+   * Recycles every decoder now, or when the last thread still decoding releases.
+   */
+  public void clear() {
+    synchronized (mOpenedDecoders) {
+      mIsCleared = true;
+      if (mActiveCount == 0) {
+        recycleDecoders();
+      }
+    }
+  }
+
+  // callers hold the lock on mOpenedDecoders
+  private void recycleDecoders() {
+    for (BitmapRegionDecoder decoder : mOpenedDecoders) {
+      decoder.recycle();
+    }
+    mOpenedDecoders.clear();
+  }
+
+}
@@ -0,0 +1,190 @@
+package com.moagrius.tileview;
+
+import android.content.Context;
+
+import com.moagrius.tileview.io.RevalidatingStreamProvider;
+import com.moagrius.tileview.io.StreamProvider;
+import com.moagrius.tileview.io.Validators;
+
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delays tile retries with exponential backoff and jitter, so a source that's down isn't hammered by every tile at
+ * once, and keeps a CircuitBreaker per source (the host for URL templates, otherwise the StreamProvider) so requests
+ * to a source that keeps failing fail fast until it's had time to recover.
+ */
+public class RetryScheduler {
+
+  private static final long DEFAULT_INITIAL_BACKOFF = 250;
+  private static final long DEFAULT_MAXIMUM_BACKOFF = 30 * 1000;
+  private static final int DEFAULT_FAILURE_THRESHOLD = 5;
+  private static final long DEFAULT_OPEN_INTERVAL = 2 * 1000;
+  private static final long DEFAULT_MAXIMUM_OPEN_INTERVAL = 60 * 1000;
+
+  private final ScheduledThreadPoolExecutor mExecutor = new ScheduledThreadPoolExecutor(1);
+  private final Map<Object, CircuitBreaker> mCircuitBreakers = new ConcurrentHashMap<>();
+  private final Random mRandom = new Random();
+  private final AtomicLong mScheduledCount = new AtomicLong();
+
+  private long mInitialBackoff = DEFAULT_INITIAL_BACKOFF;
+  private long mMaximumBackoff = DEFAULT_MAXIMUM_BACKOFF;
+  private int mFailureThreshold = DEFAULT_FAILURE_THRESHOLD;
+  private long mOpenInterval = DEFAULT_OPEN_INTERVAL;
+  private long mMaximumOpenInterval = DEFAULT_MAXIMUM_OPEN_INTERVAL;
+
+  public void setBackoff(long initialBackoff, long maximumBackoff) {
+    mInitialBackoff = initialBackoff;
+    mMaximumBackoff = maximumBackoff;
+  }
+
+  /**
+   * Only affects circuit breakers created after this is called, so set it before tiles are requested.
+   */
+  public void setCircuitBreaker(int failureThreshold, long openInterval, long maximumOpenInterval) {
+    mFailureThreshold = failureThreshold;
+    mOpenInterval = openInterval;
+    mMaximumOpenInterval = maximumOpenInterval;
+  }
+
+  /**
+   * Opens a stream through the circuit breaker for the source, recording whether it could be opened.
+   *
+   * @throws CircuitBreaker.OpenException If the source's circuit is open.
+   * @throws Exception Whatever the provider throws.
+   */
+  public InputStream openStream(StreamProvider provider, int column, int row, Context context, Object data) throws Exception {
+    return open(provider, column, row, context, data, null, false);
+  }
+
+  /**
+   * Makes a conditional request through the circuit breaker for the source, like openStream.  A not-modified answer
+   * counts as a success.
+   *
+   * @return The changed tile, or null if it hasn't changed.
+   * @throws CircuitBreaker.OpenException If the source's circuit is open.
+   * @throws Exception Whatever the provider throws.
+   */
+  public InputStream openStreamIfModified(RevalidatingStreamProvider provider, int column, int row, Context context, Object data, Validators validators) throws Exception {
+    return open(provider, column, row, context, data, validators, true);
+  }
+
+  private InputStream open(StreamProvider provider, int column, int row, Context context, Object data, Validators validators, boolean isConditional) throws Exception {
+    Object source = getSource(provider, data);
+    CircuitBreaker circuitBreaker = getCircuitBreaker(source);
+    if (!circuitBreaker.allowRequest()) {
+      throw new CircuitBreaker.OpenException(source);
+    }
+    InputStream stream;
+    try {
+      if (isConditional) {
+        stream = ((RevalidatingStreamProvider) provider).getStreamIfModified(column, row, context, data, validators);
+      } else {
+        stream = provider.getStream(column, row, context, data);
+      }
+    } catch (FileNotFoundException e) {
+      // the source answered, it just doesn't have this tile
+      circuitBreaker.onSuccess();
+      throw e;
+    } catch (Exception e) {
+      circuitBreaker.onFailure();
+      throw e;
+    }
+    circuitBreaker.onSuccess();
+    return stream;
+  }
+
+  /**
+   * @param retry What to run after the delay.
+   * @param attempt How many times this has been retried before, starting at 0.
+   * @param provider The provider the failed tile was read from.
+   * @param data The data (usually a template) the failed tile was read with.
+   * @return False if the scheduler has been shut down.
+   */
+  public boolean schedule(Runnable retry, int attempt, StreamProvider provider, Object data) {
+    // wait at least until the source's circuit would let the retry through
+    long delay = Math.max(getBackoff(attempt), getCircuitBreaker(getSource(provider, data)).getRemainingOpenMillis());
+    try {
+      mExecutor.schedule(retry, delay, TimeUnit.MILLISECONDS);
+    } catch (RejectedExecutionException e) {
+      return false;
+    }
+    mScheduledCount.incrementAndGet();
+    return true;
+  }
+
+  // "equal jitter": half the exponential delay, plus a random amount up to the other half
+  private long getBackoff(int attempt) {
+    long ceiling = Math.min(mMaximumBackoff, mInitialBackoff << Math.min(attempt, 20));
+    long half = ceiling / 2;
+    synchronized (mRandom) {
+      return half + (long) (mRandom.nextDouble() * (ceiling - half));
+    }
+  }
+
+  private Object getSource(StreamProvider provider, Object data) {
+    // templates usually aren't valid URIs until they're formatted (the % in them), so just pick out the authority
+    if (data instanceof String) {
+      String template = (String) data;
+      int start = template.indexOf("://");
+      if (start != -1) {
+        start += 3;
+        int end = template.indexOf('/', start);
+        return end == -1 ? template.substring(start) : template.substring(start, end);
+      }
+    }
+    return provider;
+  }
+
+  private CircuitBreaker getCircuitBreaker(Object source) {
+    CircuitBreaker circuitBreaker = mCircuitBreakers.get(source);
+    if (circuitBreaker == null) {
+      CircuitBreaker created = new CircuitBreaker(mFailureThreshold, mOpenInterval, mMaximumOpenInterval);
+      circuitBreaker = mCircuitBreakers.putIfAbsent(source, created);
+      if (circuitBreaker == null) {
+        circuitBreaker = created;
+      }
+    }
+    return circuitBreaker;
+  }
+
+  /**
+   * @return The circuit breaker for each source that's been read from, keyed by host name or StreamProvider.
+   */
+  public Map<Object, CircuitBreaker> getCircuitBreakers() {
+    return Collections.unmodifiableMap(mCircuitBreakers);
+  }
+
+  public long getFailureCount() {
+    long count = 0;
+    for (CircuitBreaker circuitBreaker : mCircuitBreakers.values()) {
+      count += circuitBreaker.getFailureCount();
+    }
+    return count;
+  }
+
+  public long getRejectedCount() {
+    long count = 0;
+    for (CircuitBreaker circuitBreaker : mCircuitBreakers.values()) {
+      count += circuitBreaker.getRejectedCount();
+    }
+    return count;
+  }
+
+  public long getScheduledCount() {
+    return mScheduledCount.get();
+  }
+
+  public void shutdown() {
+    mExecutor.shutdownNow();
+  }
+
+}
@@ -0,0 +1,171 @@
+package com.moagrius.tileview;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import com.moagrius.tileview.io.RevalidatingStreamProvider;
+import com.moagrius.tileview.io.Validators;
+
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gives tiles cached to disk under DiskCachePolicy.CACHE_ALL a lifetime, so they're refreshed from their source
+ * rather than served forever.
+ *
+ * A tile younger than the max age is fresh and drawn as is.  Past that, for as long again as the stale-while-revalidate
+ * window, it's drawn anyway while a conditional request checks on it in the background.  Past both, the tile asks
+ * first and only draws the cached copy if nothing changed (or the source can't be reached).
+ *
+ * A not-modified answer only rewrites the tile's validators on disk: no download, decode or re-encode.  A changed tile
+ * replaces the cached copy on disk and drops the one in memory, so the new pixels show once the tile is next drawn and
+ * reloaded from disk after the write has landed.
+ */
+public class Revalidator {
+
+  public enum Freshness {
+    FRESH, STALE, EXPIRED
+  }
+
+  // background revalidations past this many waiting are dropped, they'll be asked for again when the tile is drawn
+  private static final int QUEUE_CAPACITY = 32;
+
+  private final RevalidatingStreamProvider mStreamProvider;
+  private final RetryScheduler mRetryScheduler;
+  private final DiskCache mDiskCache;
+  private final DiskCacheWriter mDiskCacheWriter;
+  private final TileView.BitmapCache mMemoryCache;
+  private final Bitmap.Config mBitmapConfig;
+  private final long mMaxAge;
+  private final long mStaleWhileRevalidate;
+  private final ThreadPoolExecutor mExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUE_CAPACITY));
+  private final Set<Long> mInFlight = new HashSet<>();
+
+  /**
+   * @param retryScheduler Conditional requests go through its circuit breakers, like every other request to the source.
+   * @param maxAge Milliseconds a tile is fresh for after it's fetched.
+   * @param staleWhileRevalidate Milliseconds after that a stale tile is still drawn while it's revalidated.
+   */
+  public Revalidator(RevalidatingStreamProvider streamProvider, RetryScheduler retryScheduler, DiskCache diskCache, DiskCacheWriter diskCacheWriter, TileView.BitmapCache memoryCache, Bitmap.Config bitmapConfig, long maxAge, long staleWhileRevalidate) {
+    mStreamProvider = streamProvider;
+    mRetryScheduler = retryScheduler;
+    mDiskCache = diskCache;
+    mDiskCacheWriter = diskCacheWriter;
+    mMemoryCache = memoryCache;
+    mBitmapConfig = bitmapConfig;
+    mMaxAge = maxAge;
+    mStaleWhileRevalidate = staleWhileRevalidate;
+  }
+
+  /**
+   * Reads a tile from the disk cache along with the validators it was stored with, from one snapshot.
+   */
+  public DiskCache.Entry getCached(long key, Tile tile) {
+    return mDiskCache.getEntry(key, tile);
+  }
+
+  /**
+   * @param validators The validators a tile was stored with (see DiskCache.getEntry), may be null.
+   */
+  public Freshness getFreshness(Validators validators) {
+    // no record of when it was fetched, so no way to know
+    if (validators == null) {
+      return Freshness.EXPIRED;
+    }
+    long age = System.currentTimeMillis() - validators.getFetchedAt();
+    // the clock went backwards, check rather than trust it
+    if (age < 0) {
+      return Freshness.STALE;
+    }
+    if (age < mMaxAge) {
+      return Freshness.FRESH;
+    }
+    return age < mMaxAge + mStaleWhileRevalidate ? Freshness.STALE : Freshness.EXPIRED;
+  }
+
+  /**
+   * @return The validators that came with a stream from the provider, or ones that only record when it was fetched.
+   */
+  public Validators getValidators(InputStream stream) {
+    Validators validators = mStreamProvider.getValidators(stream);
+    return validators != null ? validators : new Validators(null, null, System.currentTimeMillis());
+  }
+
+  /**
+   * Asks the source whether a tile changed, on the calling thread.  If it didn't, its validators are refreshed.
+   *
+   * @param validators The validators the tile was stored with, may be null.
+   * @return The changed tile, or null if it hasn't changed.
+   * @throws CircuitBreaker.OpenException If the source's circuit is open.
+   */
+  public InputStream openStreamIfModified(long key, Validators validators, int column, int row, Context context, Object data) throws Exception {
+    InputStream stream = mRetryScheduler.openStreamIfModified(mStreamProvider, column, row, context, data, validators);
+    if (stream == null && validators != null) {
+      mDiskCache.setValidators(key, validators.refreshed(System.currentTimeMillis()));
+    }
+    return stream;
+  }
+
+  /**
+   * Revalidates a tile in the background, unless it already is.
+   *
+   * @param validators The validators the tile was stored with, may be null.
+   */
+  public void revalidate(long key, Validators validators, int column, int row, Context context, Object data) {
+    synchronized (mInFlight) {
+      if (!mInFlight.add(key)) {
+        return;
+      }
+    }
+    try {
+      mExecutor.execute(() -> revalidateSync(key, validators, column, row, context, data));
+    } catch (RejectedExecutionException e) {
+      synchronized (mInFlight) {
+        mInFlight.remove(key);
+      }
+    }
+  }
+
+  public void shutdown() {
+    mExecutor.shutdownNow();
+  }
+
+  private void revalidateSync(long key, Validators storedValidators, int column, int row, Context context, Object data) {
+    try {
+      InputStream stream = openStreamIfModified(key, storedValidators, column, row, context, data);
+      if (stream == null) {
+        return;
+      }
+      Validators validators = getValidators(stream);
+      Bitmap bitmap;
+      try {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inPreferredConfig = mBitmapConfig;
+        options.inMutable = true;
+        bitmap = BitmapFactory.decodeStream(stream, null, options);
+      } finally {
+        stream.close();
+      }
+      if (bitmap == null) {
+        return;
+      }
+      // the old copy in memory may be on screen in a tile that's being destroyed, so let it go rather than pool it
+      mMemoryCache.remove(key);
+      // replaces the copy on disk, or the first fetch of this tile if it's still waiting to be written
+      mDiskCacheWriter.replace(key, bitmap, validators);
+    } catch (Exception e) {
+      // no op, the tile stays stale and is revalidated the next time it's drawn
+    } finally {
+      synchronized (mInFlight) {
+        mInFlight.remove(key);
+      }
+    }
+  }
+
+}
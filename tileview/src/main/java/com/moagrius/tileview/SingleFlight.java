@@ -0,0 +1,146 @@
+package com.moagrius.tileview;
+
+import android.graphics.Bitmap;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Lets concurrent loads of the same tile share one fetch and decode.  The first tile to start a key leads the load,
+ * and any others that ask for it before the leader finishes join it rather than opening their own stream.  Joining
+ * doesn't block: the result is handed to each waiter on the leader's thread when the load completes.
+ *
+ * Tiles own their bitmaps (they hand them to the memory cache when they're destroyed, where they may be drawn over),
+ * so only one tile gets the decoded bitmap itself, and every other waiter gets a copy.  Copies are made in complete,
+ * while the leader still holds the bitmap and before it can reach the memory cache or the pool.
+ */
+public class SingleFlight {
+
+  private final ConcurrentHashMap<Key, Flight> mFlights = new ConcurrentHashMap<>();
+
+  /**
+   * @param key Identifies the tile being loaded.
+   * @return A new Flight if the caller should lead the load, or null if another load of this tile is already in flight.
+   */
+  public Flight start(Key key) {
+    Flight flight = new Flight(key);
+    return mFlights.putIfAbsent(key, flight) == null ? flight : null;
+  }
+
+  /**
+   * Joins the load in flight for this key, if any.  The waiter is called exactly once if this returns true.
+   *
+   * @param key Identifies the tile being loaded.
+   * @param waiter Gets the result when the load completes, on the leader's thread.
+   * @return False if nothing was in flight (or it just finished), in which case the caller should load it itself.
+   */
+  public boolean join(Key key, Waiter waiter) {
+    Flight flight = mFlights.get(key);
+    if (flight == null) {
+      return false;
+    }
+    synchronized (flight) {
+      if (flight.mIsComplete) {
+        return false;
+      }
+      flight.mWaiters.add(waiter);
+    }
+    return true;
+  }
+
+  /**
+   * Completing a flight that's already been completed does nothing.
+   *
+   * @param flight The flight returned from start.
+   * @param bitmap The result of the load, or null if it failed.
+   * @param isClaimed True if the leader is keeping the bitmap itself, and every waiter should get a copy.
+   */
+  public void complete(Flight flight, Bitmap bitmap, boolean isClaimed) {
+    List<Waiter> waiters;
+    synchronized (flight) {
+      // only the first completion counts
+      if (flight.mIsComplete) {
+        return;
+      }
+      flight.mIsComplete = true;
+      waiters = flight.mWaiters;
+    }
+    mFlights.remove(flight.mKey, flight);
+    for (Waiter waiter : waiters) {
+      Bitmap result = null;
+      if (bitmap != null) {
+        Bitmap.Config config = waiter.getBitmapConfig();
+        if (!isClaimed && bitmap.getConfig() == config) {
+          result = bitmap;
+          isClaimed = true;
+        } else {
+          result = bitmap.copy(config, true);
+        }
+      }
+      waiter.onFlightComplete(result);
+    }
+  }
+
+  public interface Waiter {
+    Bitmap.Config getBitmapConfig();
+
+    /**
+     * @param bitmap The loaded bitmap or a copy, which the waiter now owns, or null if the load failed.
+     */
+    void onFlightComplete(Bitmap bitmap);
+  }
+
+  public static class Flight {
+
+    private final Key mKey;
+    // guarded by the flight
+    private final List<Waiter> mWaiters = new ArrayList<>();
+    private boolean mIsComplete;
+
+    private Flight(Key key) {
+      mKey = key;
+    }
+
+  }
+
+  /**
+   * The cache key alone isn't enough to identify a tile across TileViews, so this includes the detail level's data
+   * (usually the path or URL template) and the tile size as well.
+   */
+  public static class Key {
+
+    private final Object mData;
+    private final long mCacheKey;
+    private final int mSize;
+
+    public Key(Object data, long cacheKey, int size) {
+      mData = data;
+      mCacheKey = cacheKey;
+      mSize = size;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (obj == this) {
+        return true;
+      }
+      if (obj instanceof Key) {
+        Key compare = (Key) obj;
+        return compare.mSize == mSize && compare.mCacheKey == mCacheKey && compare.mData.equals(mData);
+      }
+      return false;
+    }
+
+    @Override
+    public int hashCode() {
+      int hash = 17;
+      hash = hash * 31 + mSize;
+      hash = hash * 31 + (int) (mCacheKey ^ (mCacheKey >>> 32));
+      hash = hash * 31 + mData.hashCode();
+      return hash;
+    }
+
+  }
+
+}
@@ -0,0 +1,79 @@
+package com.moagrius.tileview;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for one stage of the tile pipeline (fetch or decode).  Everything is cumulative from creation, except
+ * the queue size, which is read live from the stage's queue.
+ */
+public class StageMetrics {
+
+  private final AtomicLong mSubmittedCount = new AtomicLong();
+  private final AtomicLong mCompletedCount = new AtomicLong();
+  private final AtomicLong mBusyNanos = new AtomicLong();
+  private final AtomicInteger mLargestQueueSize = new AtomicInteger();
+  private final QueueSizeProvider mQueueSizeProvider;
+
+  // each worker thread only ever runs one task at a time, so a thread local is enough to time it
+  private final ThreadLocal<long[]> mStartTimes = new ThreadLocal<long[]>() {
+    @Override
+    protected long[] initialValue() {
+      return new long[1];
+    }
+  };
+
+  StageMetrics(QueueSizeProvider queueSizeProvider) {
+    mQueueSizeProvider = queueSizeProvider;
+  }
+
+  void onSubmitted() {
+    mSubmittedCount.incrementAndGet();
+    int queueSize = mQueueSizeProvider.getQueueSize();
+    int largest;
+    while (queueSize > (largest = mLargestQueueSize.get())) {
+      if (mLargestQueueSize.compareAndSet(largest, queueSize)) {
+        break;
+      }
+    }
+  }
+
+  void onStarted() {
+    mStartTimes.get()[0] = System.nanoTime();
+  }
+
+  void onCompleted() {
+    mCompletedCount.incrementAndGet();
+    mBusyNanos.addAndGet(System.nanoTime() - mStartTimes.get()[0]);
+  }
+
+  public long getSubmittedCount() {
+    return mSubmittedCount.get();
+  }
+
+  public long getCompletedCount() {
+    return mCompletedCount.get();
+  }
+
+  public int getQueueSize() {
+    return mQueueSizeProvider.getQueueSize();
+  }
+
+  public int getLargestQueueSize() {
+    return mLargestQueueSize.get();
+  }
+
+  public long getBusyTimeMillis() {
+    return mBusyNanos.get() / 1000000;
+  }
+
+  public long getAverageTaskTimeMillis() {
+    long completed = mCompletedCount.get();
+    return completed == 0 ? 0 : getBusyTimeMillis() / completed;
+  }
+
+  interface QueueSizeProvider {
+    int getQueueSize();
+  }
+
+}
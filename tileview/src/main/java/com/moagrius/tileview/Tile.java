@@ -3,21 +3,35 @@ package com.moagrius.tileview;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Rect;
 import android.os.Looper;
 import android.os.Process;
 import android.util.Log;
 
+import com.moagrius.tileview.io.BufferPool;
 import com.moagrius.tileview.io.StreamProvider;
+import com.moagrius.tileview.io.Validators;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
-public class Tile implements Runnable {
+public class Tile implements Runnable, TileRenderExecutor.Prioritized {
 
   private static final int UNSCALED_SAMPLE_SIZE = 1;
+  // added to the priority of tiles that aren't at the current zoom, so they always run after those that are
+  private static final float STALE_ZOOM_PRIORITY = 1 << 20;
+  // added to the priority of prefetched tiles, so they run after every visible tile at the current zoom
+  private static final float PREFETCH_PRIORITY = 1 << 10;
+
+  // shared by every TileView, so two views of the same source share loads too
+  private static final SingleFlight sInFlightLoads = new SingleFlight();
 
   enum State {
     IDLE, DECODING, DECODED
@@ -33,12 +47,19 @@ public class Tile implements Runnable {
   private volatile State mState = State.IDLE;
   private Bitmap mBitmap;
   private int mRetries;
-
-  // lazy
-  private String mCacheKey;
+  private volatile Patch mPatch;
+  private volatile float mPriority;
+  private volatile long mSequence;
+  // incremented every time the tile is destroyed, so work handed off to another thread can tell if it's still wanted
+  private volatile int mGeneration;
+  // set while this tile is leading a load that other tiles may be waiting on
+  private volatile SingleFlight.Flight mFlight;
+  private volatile boolean mIsPrefetch;
 
   // final default
   private final Rect mDestinationRect = new Rect();
+  private final Rect mRegionRect = new Rect();
+  private final AtomicBoolean mIsQueued = new AtomicBoolean();
   private final BitmapFactory.Options mDrawingOptions = new TileOptions(false);
   private final BitmapFactory.Options mMeasureOptions = new TileOptions(true);
 
@@ -51,21 +72,29 @@ public class Tile implements Runnable {
   private final TileView.BitmapCache mDiskCache;
   private final TileView.BitmapPool mBitmapPool;
   private final TileView.DiskCachePolicy mDiskCachePolicy;
-  private final ThreadPoolExecutor mThreadPoolExecutor;
-  private final ThreadPoolExecutor mDiskCacheExecutor;
-
-  public Tile(int size, Bitmap.Config bitmapConfig, DrawingView drawingView, Listener listener, ThreadPoolExecutor threadPoolExecutor, ThreadPoolExecutor diskCacheExecutor, StreamProvider streamProvider, TileView.BitmapCache memoryCache, TileView.BitmapCache diskCache, TileView.BitmapPool bitmapPool, TileView.DiskCachePolicy diskCachePolicy) {
+  private final RegionDecoderCache mRegionDecoderCache;
+  private final RetryScheduler mRetryScheduler;
+  private final TileDecodeExecutor mDecodeExecutor;
+  private final TileRenderExecutor mThreadPoolExecutor;
+  private final DiskCacheWriter mDiskCacheWriter;
+  private final Revalidator mRevalidator;
+
+  public Tile(int size, Bitmap.Config bitmapConfig, DrawingView drawingView, Listener listener, TileRenderExecutor threadPoolExecutor, DiskCacheWriter diskCacheWriter, StreamProvider streamProvider, TileView.BitmapCache memoryCache, TileView.BitmapCache diskCache, TileView.BitmapPool bitmapPool, TileView.DiskCachePolicy diskCachePolicy, RegionDecoderCache regionDecoderCache, TileDecodeExecutor decodeExecutor, RetryScheduler retryScheduler, Revalidator revalidator) {
     mSize = size;
     mDrawingOptions.inPreferredConfig = bitmapConfig;
     mDrawingView = drawingView;
     mListener = listener;
     mThreadPoolExecutor = threadPoolExecutor;
-    mDiskCacheExecutor = diskCacheExecutor;
+    mDiskCacheWriter = diskCacheWriter;
+    mRevalidator = revalidator;
     mStreamProvider = streamProvider;
     mMemoryCache = memoryCache;
     mDiskCache = diskCache;
     mBitmapPool = bitmapPool;
     mDiskCachePolicy = diskCachePolicy;
+    mRegionDecoderCache = regionDecoderCache;
+    mRetryScheduler = retryScheduler;
+    mDecodeExecutor = decodeExecutor;
     mMeasureOptions.outWidth = size;
     mMeasureOptions.outHeight = size;
   }
@@ -95,6 +124,71 @@ public class Tile implements Runnable {
     mDrawingOptions.inSampleSize = mImageSample;
   }
 
+  @Override
+  public float getPriority() {
+    return mIsPrefetch ? mPriority + PREFETCH_PRIORITY : mPriority;
+  }
+
+  @Override
+  public long getSequence() {
+    return mSequence;
+  }
+
+  void setSequence(long sequence) {
+    mSequence = sequence;
+  }
+
+  @Override
+  public boolean isPending() {
+    return mIsQueued.get();
+  }
+
+  boolean markQueued() {
+    return mIsQueued.compareAndSet(false, true);
+  }
+
+  boolean unmarkQueued() {
+    return mIsQueued.compareAndSet(true, false);
+  }
+
+  /**
+   * Priority is the squared distance, in cells of this tile's size, from the center of the tile to the center of the
+   * viewport.  Tiles that don't match the current zoom go after all those that do.
+   *
+   * @param centerX The x position of the center of the viewport, in unscaled pixels.
+   * @param centerY The y position of the center of the viewport, in unscaled pixels.
+   * @param zoom The zoom level currently being rendered.
+   */
+  public void updatePriority(float centerX, float centerY, int zoom) {
+    int patchSize = mSize * mDetail.getSample() * mImageSample;
+    float distanceX = (centerX - mColumn * mSize * mDetail.getSample()) / patchSize - 0.5f;
+    float distanceY = (centerY - mRow * mSize * mDetail.getSample()) / patchSize - 0.5f;
+    float priority = distanceX * distanceX + distanceY * distanceY;
+    int tileZoom = mDetail.getZoom() + Integer.numberOfTrailingZeros(mImageSample);
+    if (tileZoom != zoom) {
+      priority += STALE_ZOOM_PRIORITY;
+    }
+    mPriority = priority;
+  }
+
+  public synchronized boolean isPrefetch() {
+    return mIsPrefetch;
+  }
+
+  /**
+   * A prefetched tile isn't drawn.  When it's decoded, its bitmap goes straight to the memory cache and the tile goes
+   * back to idle, so a visible tile for the same cell will find it there.
+   *
+   * @param prefetch True if this tile is being decoded ahead of being visible.
+   */
+  public synchronized void setPrefetch(boolean prefetch) {
+    mIsPrefetch = prefetch;
+  }
+
+  public boolean isCached() {
+    return mMemoryCache.has(getCacheKey());
+  }
+
   public Detail getDetail() {
     return mDetail;
   }
@@ -119,6 +213,10 @@ public class Tile implements Runnable {
     return mMeasureOptions;
   }
 
+  public Bitmap.Config getBitmapConfig() {
+    return mDrawingOptions.inPreferredConfig;
+  }
+
   private void updateDestinationRect() {
     int cellSize = mSize * mDetail.getSample();
     int patchSize = cellSize * mImageSample;
@@ -128,25 +226,68 @@ public class Tile implements Runnable {
     mDestinationRect.bottom = mDestinationRect.top + patchSize;
   }
 
-  private String getCacheKey() {
-    if (mCacheKey == null) {
-      mCacheKey = String.valueOf(mColumn) + String.valueOf(mRow) + String.valueOf(mImageSample) + String.valueOf(mDetail.getZoom());
-    }
-    return mCacheKey;
+  private long getCacheKey() {
+    return TileKey.pack(mColumn, mRow, mDetail.getZoom(), mImageSample);
   }
 
   // if destroyed by the time this is called, make sure bitmap stays null
   // otherwise, set bitmap, update state, send to memory cache and notify drawing view
   private void setDecodedBitmap(Bitmap bitmap) {
-    if (mState != State.DECODING) {
+    boolean isWanted = mState == State.DECODING;
+    // anyone waiting on this load gets the result (or a copy) even if we no longer want it ourselves
+    completeFlight(bitmap, isWanted);
+    if (!isWanted) {
       mBitmap = null;
       return;
     }
+    if (landPrefetchedBitmap(bitmap)) {
+      return;
+    }
     mBitmap = bitmap;
     mState = State.DECODED;
     mDrawingView.setDirty();
   }
 
+  // synchronized with setPrefetch, so a tile promoted from prefetch to visible is either drawn or found idle
+  private synchronized boolean landPrefetchedBitmap(Bitmap bitmap) {
+    if (!mIsPrefetch || mState != State.DECODING) {
+      return false;
+    }
+    mMemoryCache.put(getCacheKey(), bitmap);
+    mState = State.IDLE;
+    return true;
+  }
+
+  private void completeFlight(Bitmap bitmap, boolean isClaimed) {
+    SingleFlight.Flight flight = mFlight;
+    if (flight != null) {
+      mFlight = null;
+      sInFlightLoads.complete(flight, bitmap, isClaimed);
+    }
+  }
+
+  // called on the leader's thread when a load we joined completes
+  private synchronized void onSharedLoadComplete(Bitmap bitmap, int generation) {
+    // destroyed, or even pooled and reused, while we were waiting
+    if (mGeneration != generation || mState != State.DECODING) {
+      if (bitmap != null) {
+        mBitmapPool.release(bitmap);
+      }
+      return;
+    }
+    if (bitmap != null) {
+      setDecodedBitmap(bitmap);
+      return;
+    }
+    // the load failed, so go back in line and try it ourselves
+    mState = State.IDLE;
+    try {
+      mThreadPoolExecutor.execute(this);
+    } catch (RejectedExecutionException e) {
+      // no op
+    }
+  }
+
   protected void decode() throws Exception {
     if (mState != State.IDLE) {
       return;
@@ -160,110 +301,301 @@ public class Tile implements Runnable {
     Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST + 1);
     // putting a thread.sleep of even 100ms here shows that maybe we're doing work off screen that we should not be doing
     updateDestinationRect();
-    String key = getCacheKey();
-    Bitmap cached = mMemoryCache.get(key);
+    long key = getCacheKey();
+    // take it out in one step, so it can't be evicted to the pool (and drawn over) between a get and a remove
+    Bitmap cached = mMemoryCache.remove(key);
     if (cached != null) {
-      mMemoryCache.remove(key);
       setDecodedBitmap(cached);
       return;
     }
+    // if another tile (maybe in another TileView) is already loading this one, share its result
+    // we stay decoding, but this thread is free for other work - the result is handed to us when the load completes
+    SingleFlight.Key flightKey = new SingleFlight.Key(mDetail.getData(), key, mSize);
+    SingleFlight.Flight flight = sInFlightLoads.start(flightKey);
+    if (flight == null) {
+      if (sInFlightLoads.join(flightKey, new FlightWaiter(mGeneration))) {
+        return;
+      }
+      // that load finished before we could join it, so load it ourselves
+      flight = sInFlightLoads.start(flightKey);
+    }
+    mFlight = flight;
+    try {
+      load(key);
+    } finally {
+      // anything that didn't end with a decoded bitmap (or get handed off to the decode stage) lands the flight empty
+      completeFlight(null, false);
+    }
+  }
+
+  private void load(long key) throws Exception {
     Context context = mDrawingView.getContext();
+    Bitmap cached;
+    // single image source - cut this tile out of the larger image, at reduced resolution if we're sub-sampling
+    if (mRegionDecoderCache != null) {
+      decodeRegion(context);
+      return;
+    }
     // garden path - image sample size is 1, we have a detail level defined for this zoom
     if (mImageSample == UNSCALED_SAMPLE_SIZE) {
       // if we cache everything to disk (usually because we're fetching from remote sources)
       // check the disk cache now and return out if we can
+      InputStream stream = null;
       if (mDiskCachePolicy == TileView.DiskCachePolicy.CACHE_ALL && mDiskCache != null) {
-        cached = mDiskCache.get(key);
+        // when tiles can go stale, their validators are read along with them
+        DiskCache.Entry entry = null;
+        if (mRevalidator != null) {
+          entry = mRevalidator.getCached(key, this);
+          cached = entry == null ? null : entry.getBitmap();
+        } else {
+          cached = mDiskCache.get(key, this);
+        }
         if (cached != null) {
-          setDecodedBitmap(cached);
-          return;
+          stream = entry == null ? null : openStreamIfStale(key, entry.getValidators(), context);
+          if (stream == null) {
+            setDecodedBitmap(cached);
+            return;
+          }
+          // it changed, so the cached copy won't be drawn
+          mBitmapPool.release(cached);
+          mDiskCache.remove(key);
         }
       }
       // no strong disk cache policy, go ahead and decode
-      InputStream stream = mStreamProvider.getStream(mColumn, mRow, context, mDetail.getData());
+      if (stream == null) {
+        stream = mRetryScheduler.openStream(mStreamProvider, mColumn, mRow, context, mDetail.getData());
+      }
       if (stream != null) {
+        // the validators that came with the tile are stored with it on disk, they travel with the bitmap from here
+        Validators validators = mRevalidator == null ? null : mRevalidator.getValidators(stream);
+        // with staged decoding this thread only fetches, the bytes are decoded on the decode stage
+        if (mDecodeExecutor != null) {
+          handOffToDecodeStage(key, stream, validators);
+          return;
+        }
         // if we made it this far, the exact bitmap wasn't in memory, but let's grab the least recently used bitmap from the cache and draw over it
         mDrawingOptions.inBitmap = mBitmapPool.getBitmapForReuse(this);
         Bitmap bitmap = BitmapFactory.decodeStream(stream, null, mDrawingOptions);
         stream.close();
-        if (bitmap == null) {
-          if (mListener != null) {
-            mListener.onTileDecodeError(this, new RuntimeException("Unable to decode bitmap"));
-          }
-          return;
-        }
-        setDecodedBitmap(bitmap);
-        if (mDiskCachePolicy == TileView.DiskCachePolicy.CACHE_ALL && mDiskCache != null) {
-          saveToDiskCacheAsync(key, bitmap);
-        }
+        onStreamDecoded(key, bitmap, validators);
       }
       // we don't have a defined zoom level, so we need to use image sub-sampling and disk cache even if reading files locally
     } else {
       if (mDiskCache != null) {
-        cached = mDiskCache.get(key);
+        cached = mDiskCache.get(key, this);
         if (cached != null) {
           setDecodedBitmap(cached);
           return;
         }
       }
       // if we're patching, we need a base bitmap to draw on
-      Bitmap bitmap = Bitmap.createBitmap(mSize, mSize, mDrawingOptions.inPreferredConfig);
-      bitmap = bitmap.copy(mDrawingOptions.inPreferredConfig, true);
-      Canvas canvas = new Canvas(bitmap);
-      int size = mSize / mImageSample;
-      InputStream stream;
-      for (int i = 0; i < mImageSample; i++) {
-        for (int j = 0; j < mImageSample; j++) {
-          // if we got destroyed while decoding, drop out
-          if (mState != State.DECODING) {
-            return;
-          }
-          stream = mStreamProvider.getStream(mColumn + j, mRow + i, context, mDetail.getData());
-          if (stream != null) {
-            Bitmap piece = BitmapFactory.decodeStream(stream, null, mDrawingOptions);
-            if (piece != null) {
-              canvas.drawBitmap(piece, j * size, i * size, null);
-            }
-            stream.close();
-          }
-        }
+      Bitmap bitmap = getPatchBitmap();
+      // split the sub-tiles among this thread and helpers on the pool, and wait for all of them to be drawn
+      Patch patch = new Patch(new Canvas(bitmap), context);
+      mPatch = patch;
+      try {
+        patch.fork();
+        patch.join();
+      } finally {
+        mPatch = null;
+      }
+      // if we got destroyed while decoding, drop out, even if the tile has since been reused and is decoding again
+      if (patch.isCancelled() || mState != State.DECODING) {
+        return;
       }
       setDecodedBitmap(bitmap);
       // we need to cache patches to disk even if local
       if (mDiskCachePolicy != TileView.DiskCachePolicy.CACHE_NONE && mDiskCache != null) {
-        saveToDiskCacheAsync(key, bitmap);
+        saveToDiskCacheAsync(key, bitmap, null);
+      }
+    }
+  }
+
+  // a stale tile is drawn while it's revalidated in the background, an expired one is only drawn if it hasn't changed
+  private InputStream openStreamIfStale(long key, Validators validators, Context context) {
+    switch (mRevalidator.getFreshness(validators)) {
+      case STALE:
+        mRevalidator.revalidate(key, validators, mColumn, mRow, context, mDetail.getData());
+        return null;
+      case EXPIRED:
+        try {
+          return mRevalidator.openStreamIfModified(key, validators, mColumn, mRow, context, mDetail.getData());
+        } catch (Exception e) {
+          // the source can't say (or its circuit is open), an old tile is better than none
+          return null;
+        }
+      default:
+        return null;
+    }
+  }
+
+  private void onStreamDecoded(long key, Bitmap bitmap, Validators validators) {
+    if (bitmap == null) {
+      if (mListener != null) {
+        mListener.onTileDecodeError(this, new RuntimeException("Unable to decode bitmap"));
+      }
+      return;
+    }
+    setDecodedBitmap(bitmap);
+    if (mDiskCachePolicy == TileView.DiskCachePolicy.CACHE_ALL && mDiskCache != null) {
+      saveToDiskCacheAsync(key, bitmap, validators);
+    }
+  }
+
+  private void handOffToDecodeStage(long key, InputStream stream, Validators validators) throws IOException {
+    BufferPool bufferPool = mDecodeExecutor.getBufferPool();
+    BufferPool.Buffer buffer = bufferPool.obtain();
+    try {
+      buffer.readFrom(stream);
+    } catch (IOException e) {
+      bufferPool.release(buffer);
+      throw e;
+    } finally {
+      stream.close();
+    }
+    int generation = mGeneration;
+    // the decode stage finishes the flight now
+    SingleFlight.Flight flight = mFlight;
+    mFlight = null;
+    try {
+      // blocks if the decode stage is backed up
+      mDecodeExecutor.execute(() -> decodeBuffer(key, buffer, validators, generation, flight));
+    } catch (RejectedExecutionException e) {
+      mFlight = flight;
+      bufferPool.release(buffer);
+      throw e;
+    }
+  }
+
+  private void decodeBuffer(long key, BufferPool.Buffer buffer, Validators validators, int generation, SingleFlight.Flight flight) {
+    try {
+      // the tile may have been destroyed, or even pooled and reused, while its bytes were waiting
+      if (mState != State.DECODING || mGeneration != generation) {
+        return;
+      }
+      mFlight = flight;
+      Thread.currentThread().setPriority(Thread.MIN_PRIORITY + 1);
+      Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST + 1);
+      mDrawingOptions.inBitmap = mBitmapPool.getBitmapForReuse(this);
+      Bitmap bitmap = BitmapFactory.decodeByteArray(buffer.getData(), 0, buffer.getLength(), mDrawingOptions);
+      onStreamDecoded(key, bitmap, validators);
+    } catch (Exception e) {
+      mListener.onTileDecodeError(this, e);
+    } finally {
+      mDecodeExecutor.getBufferPool().release(buffer);
+      // if we didn't get as far as a decoded bitmap, land the flight empty
+      if (flight != null) {
+        if (mFlight == flight) {
+          mFlight = null;
+        }
+        sInFlightLoads.complete(flight, null, false);
       }
     }
   }
 
-  private void saveToDiskCacheAsync(String key, Bitmap bitmap) {
+  // try to draw the patch over a pooled bitmap, and only allocate one if there's nothing suitable
+  private Bitmap getPatchBitmap() {
+    Bitmap.Config config = mDrawingOptions.inPreferredConfig;
+    Bitmap bitmap = mBitmapPool.getBitmapForReuse(this);
+    if (bitmap != null) {
+      if (bitmap.getWidth() == mSize && bitmap.getHeight() == mSize && bitmap.getConfig() == config) {
+        return bitmap;
+      }
+      // the pool only guarantees the allocation is large enough, so fit the dimensions to the patch
+      try {
+        bitmap.reconfigure(mSize, mSize, config);
+        bitmap.eraseColor(Color.TRANSPARENT);
+        return bitmap;
+      } catch (IllegalArgumentException e) {
+        // no op, fall through to allocation
+      }
+    }
+    // createBitmap is already mutable, so there's no need to copy it
+    return Bitmap.createBitmap(mSize, mSize, config);
+  }
+
+  private void decodeRegion(Context context) throws Exception {
+    // the decoders are recycled when the TileView is destroyed, but not while we're using one
+    if (!mRegionDecoderCache.acquire()) {
+      return;
+    }
+    try {
+      decodeRegion(mRegionDecoderCache.getDecoder(mStreamProvider, context, mDetail.getData()));
+    } finally {
+      mRegionDecoderCache.release();
+    }
+  }
+
+  private void decodeRegion(BitmapRegionDecoder decoder) {
+    if (decoder == null) {
+      return;
+    }
+    // the region is in pixels of the image defined for this detail level, and covers every cell this tile patches
+    int regionSize = mSize * mImageSample;
+    int left = mColumn * mSize;
+    int top = mRow * mSize;
+    int right = Math.min(left + regionSize, decoder.getWidth());
+    int bottom = Math.min(top + regionSize, decoder.getHeight());
+    if (right <= left || bottom <= top) {
+      return;
+    }
+    mRegionRect.set(left, top, right, bottom);
+    // tiles along the right and bottom edges of the image are partial, shrink the destination so they're not stretched
+    mDestinationRect.right = mDestinationRect.left + (right - left) * mDetail.getSample();
+    mDestinationRect.bottom = mDestinationRect.top + (bottom - top) * mDetail.getSample();
+    // a partial region would only fill part of a reused bitmap, leaving stale pixels in the rest
+    boolean isFullRegion = right - left == regionSize && bottom - top == regionSize;
+    mDrawingOptions.inBitmap = isFullRegion ? mBitmapPool.getBitmapForReuse(this) : null;
+    // inSampleSize is the image sample, so sub-sampled zooms decode one region at reduced resolution
+    Bitmap bitmap = decoder.decodeRegion(mRegionRect, mDrawingOptions);
+    if (bitmap == null) {
+      if (mListener != null) {
+        mListener.onTileDecodeError(this, new RuntimeException("Unable to decode bitmap region"));
+      }
+      return;
+    }
+    setDecodedBitmap(bitmap);
+  }
+
+  private void saveToDiskCacheAsync(long key, Bitmap bitmap, Validators validators) {
     if (Looper.getMainLooper() == Looper.myLooper()) {
       return;
     }
-    if (mDiskCache.has(key)) {
+    if (mDiskCacheWriter == null || mDiskCache.has(key) || mDiskCacheWriter.isPending(key)) {
       return;
     }
     Thread.currentThread().setPriority(Thread.MIN_PRIORITY);
     Process.setThreadPriority(Process.THREAD_PRIORITY_LOWEST);
-    mDiskCacheExecutor.execute(() -> mDiskCache.put(key, bitmap));
+    mDiskCacheWriter.write(key, bitmap, validators);
   }
 
   // we use this signature to call from the Executor, so it can remove tiles via iterator
   public synchronized void destroy(boolean removeFromQueue) {
+    // a tile that's queued but hasn't started yet is still idle, so take it out of line and hand it back
+    boolean wasQueued = removeFromQueue && mThreadPoolExecutor.cancel(this);
     if (mState == State.IDLE) {
+      if (wasQueued) {
+        mListener.onTileDestroyed(this);
+      }
       return;
     }
     if (mState == State.DECODED) {
-      mMemoryCache.put(getCacheKey(), mBitmap);
+      // if a bitmap for the same tile was already cached, it's no longer anyone's, so it can be reused
+      Bitmap previous = mMemoryCache.put(getCacheKey(), mBitmap);
+      if (previous != null && previous != mBitmap) {
+        mBitmapPool.release(previous);
+      }
     }
     mState = State.IDLE;
-    if (removeFromQueue) {
-      mThreadPoolExecutor.remove(this);
+    // helpers still waiting in the queue for a patch we no longer need should not do any work
+    Patch patch = mPatch;
+    if (patch != null) {
+      patch.cancel();
     }
+    mGeneration++;
     mBitmap = null;
     mDrawingOptions.inBitmap = null;
     // since tiles are pooled and reused, make sure to reset the cache key or you'll render the wrong tile from cache
-    mCacheKey = null;
     mListener.onTileDestroyed(this);
   }
 
@@ -271,19 +603,32 @@ public class Tile implements Runnable {
     destroy(true);
   }
 
+  /**
+   * Queues this tile again after a backoff that grows with each retry, and waits out an open circuit for its source.
+   * If the tile is destroyed or starts decoding before then, the retry does nothing.
+   */
   public void retry(int attempts) {
     if (mRetries <= attempts && mState == State.IDLE) {
       Log.d("TileView", "retrying tile");
-      mRetries++;
-      try {
-        mThreadPoolExecutor.execute(this);
-      } catch (RejectedExecutionException e) {
-        // no op
-      }
+      int generation = mGeneration;
+      mRetryScheduler.schedule(() -> {
+        if (mGeneration != generation || mState != State.IDLE) {
+          return;
+        }
+        try {
+          mThreadPoolExecutor.execute(this);
+        } catch (RejectedExecutionException e) {
+          // no op
+        }
+      }, mRetries++, mStreamProvider, mDetail.getData());
     }
   }
 
   public void run() {
+    // we may have been cancelled, or run from a duplicate entry, since we were queued
+    if (!mThreadPoolExecutor.claim(this)) {
+      return;
+    }
     try {
       decode();
     } catch (Exception e) {
@@ -329,6 +674,150 @@ public class Tile implements Runnable {
     void onTileDecodeError(Tile tile, Exception e);
   }
 
+  /**
+   * Decodes the sub-tiles of a patch (used when there's no detail level defined for the current zoom) across the
+   * render pool.  The tile's own thread and any helpers all claim the next unclaimed piece until none are left, so
+   * the tile never waits on a piece nobody has started, even if every helper is still queued.
+   */
+  private class Patch implements Runnable, TileRenderExecutor.Prioritized {
+
+    private final Canvas mCanvas;
+    private final Context mContext;
+    // capture what we need now, a helper may still be finishing a piece after this tile has been pooled and reused
+    private final int mPatchColumn = mColumn;
+    private final int mPatchRow = mRow;
+    private final int mPatchSample = mImageSample;
+    private final Object mPatchData = mDetail.getData();
+    // the tile's generation when this patch was started, it's moved on once the tile is destroyed
+    private final int mPatchGeneration = mGeneration;
+    // helpers are queued alongside the tile that forked them, and keep that place while they wait
+    private final float mPatchPriority = mPriority;
+    private final long mPatchSequence = mSequence;
+    private final int mPieceCount = mPatchSample * mPatchSample;
+    private final AtomicInteger mNextPiece = new AtomicInteger();
+    private final CountDownLatch mRemainingPieces = new CountDownLatch(mPieceCount);
+    private volatile Exception mException;
+    private volatile boolean mIsCancelled;
+
+    Patch(Canvas canvas, Context context) {
+      mCanvas = canvas;
+      mContext = context;
+    }
+
+    void fork() {
+      int helpers = Math.min(mPieceCount, mThreadPoolExecutor.getMaximumPoolSize()) - 1;
+      try {
+        for (int i = 0; i < helpers; i++) {
+          mThreadPoolExecutor.execute(this);
+        }
+      } catch (RejectedExecutionException e) {
+        // no op, whatever isn't picked up by a helper is decoded in join
+      }
+    }
+
+    void join() throws Exception {
+      decodePieces();
+      mRemainingPieces.await();
+      if (mException != null) {
+        throw mException;
+      }
+    }
+
+    // queued helpers are left for the executor to skip or purge, same as cancelled tiles
+    void cancel() {
+      mIsCancelled = true;
+    }
+
+    // checks the patch rather than the tile, which may have been destroyed and reused for another patch since
+    boolean isCancelled() {
+      return mIsCancelled || mGeneration != mPatchGeneration;
+    }
+
+    @Override
+    public float getPriority() {
+      return mPatchPriority;
+    }
+
+    @Override
+    public long getSequence() {
+      return mPatchSequence;
+    }
+
+    @Override
+    public boolean isPending() {
+      return !isCancelled() && mNextPiece.get() < mPieceCount;
+    }
+
+    @Override
+    public void run() {
+      if (isPending()) {
+        decodePieces();
+      }
+    }
+
+    private void decodePieces() {
+      // options are written to during decode, so each participating thread needs its own
+      BitmapFactory.Options options = new TileOptions(false);
+      options.inPreferredConfig = mDrawingOptions.inPreferredConfig;
+      options.inSampleSize = mPatchSample;
+      int index;
+      while ((index = mNextPiece.getAndIncrement()) < mPieceCount) {
+        try {
+          // if the tile got destroyed or another piece failed, count down what's left without decoding it
+          if (!isCancelled() && mException == null) {
+            decodePiece(index, options);
+          }
+        } catch (Exception e) {
+          mException = e;
+        } finally {
+          mRemainingPieces.countDown();
+        }
+      }
+    }
+
+    private void decodePiece(int index, BitmapFactory.Options options) throws Exception {
+      int i = index / mPatchSample;
+      int j = index % mPatchSample;
+      InputStream stream = mRetryScheduler.openStream(mStreamProvider, mPatchColumn + j, mPatchRow + i, mContext, mPatchData);
+      if (stream != null) {
+        // inSampleSize is the patch sample, so the piece is decoded at the size it's drawn, never shrunk after
+        Bitmap piece = BitmapFactory.decodeStream(stream, null, options);
+        stream.close();
+        if (piece != null) {
+          int size = mSize / mPatchSample;
+          synchronized (mCanvas) {
+            mCanvas.drawBitmap(piece, j * size, i * size, null);
+          }
+          // a piece is garbage as soon as it's drawn, so the next piece this thread decodes goes into the same pixels
+          // but only a full size piece - edge pieces are smaller, and a full piece after one wouldn't fit
+          boolean isFullPiece = piece.getWidth() == size && piece.getHeight() == size && piece.getConfig() == options.inPreferredConfig;
+          options.inBitmap = isFullPiece ? piece : null;
+        }
+      }
+    }
+
+  }
+
+  private class FlightWaiter implements SingleFlight.Waiter {
+
+    private final int mWaitingGeneration;
+
+    FlightWaiter(int generation) {
+      mWaitingGeneration = generation;
+    }
+
+    @Override
+    public Bitmap.Config getBitmapConfig() {
+      return mDrawingOptions.inPreferredConfig;
+    }
+
+    @Override
+    public void onFlightComplete(Bitmap bitmap) {
+      onSharedLoadComplete(bitmap, mWaitingGeneration);
+    }
+
+  }
+
   private static class TileOptions extends BitmapFactory.Options {
 
     // using inTempStorage with local files can create artifacts
@@ -0,0 +1,75 @@
+package com.moagrius.tileview;
+
+import com.moagrius.tileview.io.BufferPool;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The second stage of staged decoding.  The TileRenderExecutor fetches tile bytes into pooled buffers, and hands them
+ * to this executor to be decoded into bitmaps.
+ *
+ * The hand-off is bounded: when the queue is full, the fetching thread blocks until there's room, so slow decodes
+ * push back on fetching instead of piling up buffers in memory.
+ */
+public class TileDecodeExecutor extends ThreadPoolExecutor {
+
+  private static final int MAXIMUM_NUMBER_OF_THREADS = 4;
+  private static final int QUEUE_CAPACITY_PER_THREAD = 2;
+
+  private final BufferPool mBufferPool;
+  private final StageMetrics mMetrics = new StageMetrics(() -> getQueue().size());
+
+  public TileDecodeExecutor(int size, int queueCapacity, int fetchThreads) {
+    super(size, size, 0L, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), (runnable, executor) -> {
+      if (executor.isShutdown()) {
+        throw new RejectedExecutionException("TileDecodeExecutor has been shut down");
+      }
+      try {
+        executor.getQueue().put(runnable);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new RejectedExecutionException(e);
+      }
+    });
+    // every buffer is either being filled by a fetch thread, waiting in the queue, or being decoded
+    mBufferPool = new BufferPool(fetchThreads + queueCapacity + size);
+  }
+
+  public TileDecodeExecutor(int fetchThreads) {
+    this(getDefaultSize(), getDefaultSize() * QUEUE_CAPACITY_PER_THREAD, fetchThreads);
+  }
+
+  private static int getDefaultSize() {
+    return Math.min(MAXIMUM_NUMBER_OF_THREADS, Runtime.getRuntime().availableProcessors());
+  }
+
+  public BufferPool getBufferPool() {
+    return mBufferPool;
+  }
+
+  public StageMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  @Override
+  public void execute(Runnable runnable) {
+    super.execute(runnable);
+    mMetrics.onSubmitted();
+  }
+
+  @Override
+  protected void beforeExecute(Thread thread, Runnable runnable) {
+    super.beforeExecute(thread, runnable);
+    mMetrics.onStarted();
+  }
+
+  @Override
+  protected void afterExecute(Runnable runnable, Throwable throwable) {
+    super.afterExecute(runnable, throwable);
+    mMetrics.onCompleted();
+  }
+
+}
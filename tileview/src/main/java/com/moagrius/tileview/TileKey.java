@@ -0,0 +1,80 @@
+package com.moagrius.tileview;
+
+/**
+ * Packs what identifies a tile into a single long, so cache lookups don't allocate:
+ *
+ * BITS     FIELD
+ * 63-40    column (24 bits)
+ * 39-16    row (24 bits)
+ * 15-8     detail zoom (8 bits)
+ * 7-0      log2 of the image sample (8 bits)
+ *
+ * The disk cache uses the same value, written as 16 hex digits, so entries stay valid across launches.
+ */
+public final class TileKey {
+
+  private static final int COLUMN_SHIFT = 40;
+  private static final int ROW_SHIFT = 16;
+  private static final int ZOOM_SHIFT = 8;
+  private static final long COORDINATE_MASK = 0xFFFFFF;
+  private static final long BYTE_MASK = 0xFF;
+
+  private TileKey() {
+  }
+
+  public static long pack(int column, int row, int zoom, int imageSample) {
+    return ((column & COORDINATE_MASK) << COLUMN_SHIFT)
+        | ((row & COORDINATE_MASK) << ROW_SHIFT)
+        | ((zoom & BYTE_MASK) << ZOOM_SHIFT)
+        | (Integer.numberOfTrailingZeros(imageSample) & BYTE_MASK);
+  }
+
+  public static int getColumn(long key) {
+    return (int) ((key >>> COLUMN_SHIFT) & COORDINATE_MASK);
+  }
+
+  public static int getRow(long key) {
+    return (int) ((key >>> ROW_SHIFT) & COORDINATE_MASK);
+  }
+
+  public static int getZoom(long key) {
+    return (int) ((key >>> ZOOM_SHIFT) & BYTE_MASK);
+  }
+
+  public static int getImageSample(long key) {
+    return 1 << (key & BYTE_MASK);
+  }
+
+  /**
+   * @return The key as 16 lowercase hex digits, which is a valid DiskLruCache key.
+   */
+  public static String toDiskKey(long key) {
+    char[] digits = new char[16];
+    for (int i = 15; i >= 0; i--) {
+      digits[i] = Character.forDigit((int) (key & 0xF), 16);
+      key >>>= 4;
+    }
+    return new String(digits);
+  }
+
+  /**
+   * The reverse of toDiskKey.
+   *
+   * @throws IllegalArgumentException If diskKey isn't 16 hex digits.
+   */
+  public static long fromDiskKey(String diskKey) {
+    if (diskKey.length() != 16) {
+      throw new IllegalArgumentException("Not a disk key: " + diskKey);
+    }
+    long key = 0;
+    for (int i = 0; i < 16; i++) {
+      int digit = Character.digit(diskKey.charAt(i), 16);
+      if (digit == -1) {
+        throw new IllegalArgumentException("Not a disk key: " + diskKey);
+      }
+      key = (key << 4) | digit;
+    }
+    return key;
+  }
+
+}
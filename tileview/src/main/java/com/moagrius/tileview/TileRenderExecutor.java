@@ -1,32 +1,98 @@
 package com.moagrius.tileview;
 
+import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TileRenderExecutor extends ThreadPoolExecutor {
 
   private static final int MAXIMUM_NUMBER_OF_THREADS = 4;
+  // with staged decoding these threads mostly wait on I/O, so there can be more of them than there are cores
+  public static final int STAGED_FETCH_THREADS = 8;
+  private static final int INITIAL_QUEUE_CAPACITY = 64;
+  // cancelled work is left in the queue and skipped when it comes up, until there's this much more of it than live work
+  private static final int PURGE_SLACK = 32;
+
+  // lower priority values run first, and anything with the same priority runs in the order it was queued
+  // without prioritization every priority is the same, so this is just FIFO
+  private static final Comparator<Runnable> PRIORITY_COMPARATOR = (first, second) -> {
+    Prioritized a = (Prioritized) first;
+    Prioritized b = (Prioritized) second;
+    int comparison = Float.compare(a.getPriority(), b.getPriority());
+    return comparison != 0 ? comparison : Long.compare(a.getSequence(), b.getSequence());
+  };
+
+  private final AtomicLong mSequence = new AtomicLong();
+  private final AtomicInteger mPendingCount = new AtomicInteger();
+  // only touched on the UI thread, in reprioritize
+  private final List<Runnable> mReprioritizationBuffer = new ArrayList<>();
+  private final StageMetrics mMetrics = new StageMetrics(() -> getQueue().size());
+  private volatile boolean mIsPrioritizingByDistance;
 
   public TileRenderExecutor(int size) {
-    super(size, size, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+    super(size, size, 0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<>(INITIAL_QUEUE_CAPACITY, PRIORITY_COMPARATOR));
   }
 
   public TileRenderExecutor() {
     this(Math.min(MAXIMUM_NUMBER_OF_THREADS, Runtime.getRuntime().availableProcessors()));
   }
 
-  public void queue(Set<Tile> renderSet) {
-    Iterator<Runnable> iterator = getQueue().iterator();
-    while (iterator.hasNext()) {
-      Tile tile = (Tile) iterator.next();
-      if (!renderSet.contains(tile)) {
-        tile.destroy(false);
-        iterator.remove();
+  public void setPoolSize(int size) {
+    // the maximum can never be less than the core size, so order the calls depending on which way we're going
+    if (size > getMaximumPoolSize()) {
+      setMaximumPoolSize(size);
+      setCorePoolSize(size);
+    } else {
+      setCorePoolSize(size);
+      setMaximumPoolSize(size);
+    }
+  }
+
+  public StageMetrics getMetrics() {
+    return mMetrics;
+  }
+
+  public boolean isPrioritizingByDistance() {
+    return mIsPrioritizingByDistance;
+  }
+
+  public void setPrioritizingByDistance(boolean prioritizingByDistance) {
+    mIsPrioritizingByDistance = prioritizingByDistance;
+  }
+
+  /**
+   * Tiles carry their own queued flag, which serves as the index of pending work.  Queueing a tile that's already
+   * queued is a no-op, and cancelling one just clears the flag, both in constant time.  Cancelled entries stay in the
+   * queue and are skipped when a thread reaches them (see claim), and are purged in bulk if they start to pile up.
+   *
+   * A tile is queued in an entry that keeps the tile's priority as it was when queued, so the heap's order holds while
+   * the tile's own priority changes with the viewport.  Entries are only re-keyed in reprioritize.
+   */
+  @Override
+  public void execute(Runnable runnable) {
+    if (runnable instanceof Tile) {
+      Tile tile = (Tile) runnable;
+      if (!tile.markQueued()) {
+        return;
       }
+      mPendingCount.incrementAndGet();
+      tile.setSequence(mSequence.getAndIncrement());
+      runnable = new QueuedTile(tile);
     }
+    super.execute(runnable);
+    mMetrics.onSubmitted();
+  }
+
+  public void queue(Set<Tile> renderSet) {
+    // tiles that left the render set have already been cancelled by their owner, so we only need to look at this set
     for (Tile tile : renderSet) {
       if (isShutdownOrTerminating()) {
         return;
@@ -35,22 +101,134 @@ public class TileRenderExecutor extends ThreadPoolExecutor {
         execute(tile);
       }
     }
+    if (getQueue().size() > mPendingCount.get() * 2 + PURGE_SLACK) {
+      purgeCancelled();
+    }
+  }
+
+  /**
+   * Re-keys everything waiting with its tile's current priority.  This drains and refills the whole queue, so callers
+   * should only do it when the viewport has moved far enough for the order to have changed meaningfully.
+   */
+  public void reprioritize() {
+    BlockingQueue<Runnable> queue = getQueue();
+    queue.drainTo(mReprioritizationBuffer);
+    // out of the heap now, so keys can change without breaking its order
+    for (Runnable runnable : mReprioritizationBuffer) {
+      if (runnable instanceof QueuedTile) {
+        ((QueuedTile) runnable).updatePriority();
+      }
+    }
+    queue.addAll(mReprioritizationBuffer);
+    mReprioritizationBuffer.clear();
+  }
+
+  /**
+   * @param tile The tile to take out of line.
+   * @return True if the tile was queued and hadn't started, false otherwise.
+   */
+  public boolean cancel(Tile tile) {
+    if (tile.unmarkQueued()) {
+      mPendingCount.decrementAndGet();
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Called by a tile when its turn comes up.
+   *
+   * @param tile The tile about to run.
+   * @return True if the tile should run, false if it was cancelled or already claimed by a duplicate queue entry.
+   */
+  boolean claim(Tile tile) {
+    return cancel(tile);
+  }
+
+  public int getPendingCount() {
+    return mPendingCount.get();
   }
 
   public void cancel() {
     for (Runnable runnable : getQueue()) {
-      Tile tile = (Tile) runnable;
-      tile.destroy();
+      if (runnable instanceof QueuedTile) {
+        ((QueuedTile) runnable).mTile.destroy();
+      }
     }
     getQueue().clear();
+    mPendingCount.set(0);
+  }
+
+  private void purgeCancelled() {
+    Iterator<Runnable> iterator = getQueue().iterator();
+    while (iterator.hasNext()) {
+      if (!((Prioritized) iterator.next()).isPending()) {
+        iterator.remove();
+      }
+    }
   }
 
   private boolean isShutdownOrTerminating() {
     return isShutdown() || isTerminating() || isTerminated();
   }
 
+  /**
+   * Everything passed to the executor needs to be Prioritized, so it can sit in the priority queue.  Anything other
+   * than a Tile is queued as is, so its priority mustn't change while it's waiting.
+   */
+  interface Prioritized {
+    float getPriority();
+    long getSequence();
+    boolean isPending();
+  }
+
+  private static class QueuedTile implements Runnable, Prioritized {
+
+    private final Tile mTile;
+    private final long mQueuedSequence;
+    private float mQueuedPriority;
+
+    QueuedTile(Tile tile) {
+      mTile = tile;
+      mQueuedSequence = tile.getSequence();
+      mQueuedPriority = tile.getPriority();
+    }
+
+    void updatePriority() {
+      mQueuedPriority = mTile.getPriority();
+    }
+
+    @Override
+    public float getPriority() {
+      return mQueuedPriority;
+    }
+
+    @Override
+    public long getSequence() {
+      return mQueuedSequence;
+    }
+
+    @Override
+    public boolean isPending() {
+      return mTile.isPending();
+    }
+
+    @Override
+    public void run() {
+      mTile.run();
+    }
+
+  }
+
+  @Override
+  protected void beforeExecute(Thread thread, Runnable runnable) {
+    super.beforeExecute(thread, runnable);
+    mMetrics.onStarted();
+  }
+
   @Override
   protected void afterExecute(Runnable runnable, Throwable throwable) {
+    mMetrics.onCompleted();
     synchronized (this) {
       super.afterExecute(runnable, throwable);
       if (getQueue().size() == 0) {
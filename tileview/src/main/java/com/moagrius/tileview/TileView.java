@@ -1,7 +1,9 @@
 package com.moagrius.tileview;
 
 import android.app.Activity;
+import android.content.ComponentCallbacks2;
 import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Rect;
@@ -9,6 +11,7 @@ import android.graphics.Region;
 import android.os.Handler;
 import android.os.Message;
 import android.os.Parcelable;
+import android.os.SystemClock;
 import android.support.annotation.Nullable;
 import android.util.AttributeSet;
 import android.util.Log;
@@ -16,8 +19,10 @@ import android.view.MotionEvent;
 import android.view.View;
 import android.view.ViewGroup;
 
+import com.moagrius.tileview.io.RevalidatingStreamProvider;
 import com.moagrius.tileview.io.StreamProvider;
 import com.moagrius.tileview.io.StreamProviderAssets;
+import com.moagrius.tileview.io.Validators;
 import com.moagrius.utils.Maths;
 import com.moagrius.widget.ScalingScrollView;
 
@@ -27,9 +32,6 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
 
 public class TileView extends ScalingScrollView implements
     Handler.Callback,
@@ -41,12 +43,39 @@ public class TileView extends ScalingScrollView implements
   // constants
   private static final int RENDER_THROTTLE_ID = 0;
   private static final int RENDER_THROTTLE_INTERVAL = 15;
+  private static final int TRIM_RESTORE_ID = 1;
+  // if we don't hear about memory pressure again for this long, go back to the full budget
+  private static final int TRIM_RESTORE_DELAY = 30 * 1000;
   private static final short DEFAULT_TILE_SIZE = 256;
+  // how far ahead (in time) to extend the prefetch ring in the direction we're moving, and the most it can extend
+  // in multiples of the prefetch margin
+  private static final float PREFETCH_LOOKAHEAD_SECONDS = 0.5f;
+  private static final int MAXIMUM_PREFETCH_LEAD = 2;
+  // queued work is only re-sorted once the viewport center has moved this far (in cells) since it was last sorted
+  private static final float REPRIORITIZE_DISTANCE = 0.5f;
+  // while decodes are suppressed, check back this often so normal scheduling resumes once we've settled
+  private static final int FLING_SETTLE_RECHECK_INTERVAL = 120;
+  // how far ahead (in time) to project a scale change, to decide if we're about to cross into another zoom level
+  private static final float SCALE_LOOKAHEAD_SECONDS = 0.3f;
+  // if the scale hasn't changed in this long, it isn't trending anywhere
+  private static final long SCALE_TREND_STALE_INTERVAL = 100;
+  // weight of the newest sample in the smoothed scale velocity
+  private static final float SCALE_TREND_SMOOTHING = 0.5f;
 
   // variables (settable)
   private int mZoom = 0;
+  private int mPrefetchZoom = -1;  // the zoom level of mZoomPrefetchTiles, if any
+  private float mScaleVelocity;  // in zoom levels per second, positive when zooming out
+  private long mLastScaleChangeTime;
   private int mImageSample = 1; // sample will always be one unless we don't have a defined detail level, then its 1 shl for every zoom level from the last defined detail
   private int mTileSize = DEFAULT_TILE_SIZE;
+  private int mPrefetchMargin;  // in tiles, 0 means don't prefetch
+  private float mFlingSuppressionVelocity;  // in pixels per second, 0 means never suppress
+  private float mBudgetFraction = 1;  // less than 1 while trimmed for memory pressure
+  private float mPrioritizedCenterX;  // where the viewport center was when queued work was last sorted
+  private float mPrioritizedCenterY;
+  private int mPrioritizedZoom = -1;
+  private boolean mIsTrimmedForBackground;
   private boolean mIsPrepared;
   private boolean mHasRunOnReady;
   private Detail mCurrentDetail;
@@ -60,16 +89,23 @@ public class TileView extends ScalingScrollView implements
 
   // variables (from build or attach)
   private FixedSizeViewGroup mContainer;
+  private MotionPredictor mMotionPredictor;
   private TilingBitmapView mTilingBitmapView;
   private BitmapCache mDiskCache;
+  private DiskCacheWriter mDiskCacheWriter;
+  private Revalidator mRevalidator;
   private BitmapCache mMemoryCache;
   private BitmapPool mBitmapPool;
   private StreamProvider mStreamProvider;
   private Bitmap.Config mBitmapConfig = Bitmap.Config.RGB_565;
   private DiskCachePolicy mDiskCachePolicy = DiskCachePolicy.CACHE_PATCHES;
+  private RegionDecoderCache mRegionDecoderCache;  // only when using SourceMode.SINGLE_IMAGE
+  private TileDecodeExecutor mDecodeExecutor;  // only when using staged decoding
 
   // final
   private final Grid mGrid = new Grid();
+  private final Grid mPrefetchGrid = new Grid();
+  private final Grid mFlingEndGrid = new Grid();
   private final DetailList mDetailList = new DetailList();
   private final Map<Class<? extends Plugin>, Plugin> mPlugins = new HashMap<>();
 
@@ -83,6 +119,9 @@ public class TileView extends ScalingScrollView implements
   private final Set<Tile> mNewlyVisibleTiles = new LinkedHashSet<>();
   private final Set<Tile> mTilesVisibleInViewport = new LinkedHashSet<>();
   private final Set<Tile> mPreviouslyDrawnTiles = new LinkedHashSet<>();
+  private final Set<Tile> mNewlyPrefetchedTiles = new LinkedHashSet<>();
+  private final Set<Tile> mPrefetchTiles = new LinkedHashSet<>();
+  private final Set<Tile> mZoomPrefetchTiles = new LinkedHashSet<>();
 
   private final Rect mViewport = new Rect();
   private final Rect mScaledViewport = new Rect();  // really just a buffer for unfilled region
@@ -90,8 +129,24 @@ public class TileView extends ScalingScrollView implements
 
   private final TilePool mTilePool = new TilePool(this::createTile);
   private final TileRenderExecutor mExecutor = new TileRenderExecutor();
-  private final ThreadPoolExecutor mDiskCacheExecutor = new ThreadPoolExecutor(0, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
+  private final RetryScheduler mRetryScheduler = new RetryScheduler();
   private final Handler mRenderThrottle = new Handler(this);
+  private final ComponentCallbacks2 mComponentCallbacks = new ComponentCallbacks2() {
+    @Override
+    public void onTrimMemory(int level) {
+      TileView.this.onTrimMemory(level);
+    }
+
+    @Override
+    public void onLowMemory() {
+      TileView.this.onTrimMemory(TRIM_MEMORY_COMPLETE);
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration configuration) {
+      // no op
+    }
+  };
 
   public TileView(Context context) {
     this(context, null);
@@ -118,6 +173,7 @@ public class TileView extends ScalingScrollView implements
     // e.g., ViewGroup.addView(child) will call ViewGroup.addView(child, -1, ...)
     // which will end up placing the child in the TileView rather than the container
     super.addView(mContainer, -1, generateDefaultLayoutParams());
+    mMotionPredictor = new MotionPredictor(context);
   }
 
   @Override
@@ -192,6 +248,54 @@ public class TileView extends ScalingScrollView implements
     return mContainer.getFixedHeight();
   }
 
+  /**
+   * @return Metrics for the render executor, which fetches and decodes tiles, or only fetches them with staged decoding.
+   */
+  public StageMetrics getRenderMetrics() {
+    return mExecutor.getMetrics();
+  }
+
+  /**
+   * @return Metrics for the decode stage, or null if staged decoding is not enabled.
+   */
+  public StageMetrics getDecodeMetrics() {
+    return mDecodeExecutor == null ? null : mDecodeExecutor.getMetrics();
+  }
+
+  /**
+   * @return The scheduler for tile retries, with the failure counts and circuit breaker for each tile source.
+   */
+  public RetryScheduler getRetryScheduler() {
+    return mRetryScheduler;
+  }
+
+  /**
+   * Stats must be enabled with Builder.setCacheStatsEnabled.
+   *
+   * @return A snapshot of the memory cache counters, or null if stats aren't enabled.
+   */
+  @Nullable
+  public CacheStats.Snapshot getMemoryCacheStats() {
+    return getStatsSnapshot(mMemoryCache == null ? null : mMemoryCache.getStats());
+  }
+
+  @Nullable
+  public CacheStats.Snapshot getDiskCacheStats() {
+    return getStatsSnapshot(mDiskCache == null ? null : mDiskCache.getStats());
+  }
+
+  /**
+   * @return A snapshot of the bitmap pool counters, where the hit rate is the reuse rate, or null if stats aren't enabled.
+   */
+  @Nullable
+  public CacheStats.Snapshot getBitmapPoolStats() {
+    return getStatsSnapshot(mBitmapPool == null ? null : mBitmapPool.getStats());
+  }
+
+  private static CacheStats.Snapshot getStatsSnapshot(CacheStats stats) {
+    return stats == null ? null : stats.snapshot();
+  }
+
   public void setTileDecodeErrorListener(TileDecodeErrorListener listener) {
     mTileDecodeErrorListener = listener;
   }
@@ -256,6 +360,19 @@ public class TileView extends ScalingScrollView implements
     determineCurrentDetail();
   }
 
+  /**
+   * Starts decoding the tiles that will be visible at the given scale, around the current center, into the memory
+   * cache.  Call this before starting a scale animation with a known target, so the new detail level is ready when
+   * the animation crosses into it.  Pinches and other scale changes are projected automatically, this is only needed
+   * to get ahead of a known destination.
+   *
+   * @param scale The scale that will be reached.
+   */
+  public void prefetchScale(float scale) {
+    int zoom = Math.max(0, Detail.getZoomFromPercent(scale));
+    prefetchZoom(zoom, scale);
+  }
+
   private void centerVisibleChildren() {
     final int scaledWidth = getScaledWidth();
     final int scaledHeight = getScaledHeight();
@@ -287,6 +404,14 @@ public class TileView extends ScalingScrollView implements
     }
   }
 
+  @Override
+  public boolean dispatchTouchEvent(MotionEvent event) {
+    int maxScrollX = Math.max(0, getScaledWidth() - getWidth());
+    int maxScrollY = Math.max(0, getScaledHeight() - getHeight());
+    mMotionPredictor.onTouchEvent(event, maxScrollX, maxScrollY);
+    return super.dispatchTouchEvent(event);
+  }
+
   @Override
   public boolean onInterceptTouchEvent(MotionEvent event) {
     boolean result = super.onInterceptTouchEvent(event);
@@ -312,6 +437,7 @@ public class TileView extends ScalingScrollView implements
   @Override
   protected void onScrollChanged(int x, int y, int previousX, int previousY) {
     super.onScrollChanged(x, y, previousX, previousY);
+    mMotionPredictor.onScrollChanged(x, y);
     updateViewportAndComputeTilesThrottled();
     for (Listener listener : mListeners) {
       listener.onScrollChanged(x, y);
@@ -331,15 +457,31 @@ public class TileView extends ScalingScrollView implements
       mZoom = 0;
     }
     boolean zoomChanged = mZoom != previousZoom;
+    updateScaleTrend(currentScale, previousScale);
     if (zoomChanged) {
       mPreviouslyDrawnTiles.clear();
       for (Tile tile : mTilesVisibleInViewport) {
         if (tile.getState() == Tile.State.DECODED) {
           mPreviouslyDrawnTiles.add(tile);
+        } else {
+          // anything still queued or decoding for the old zoom won't be drawn, so cancel it now
+          tile.destroy();
         }
       }
       mTilesVisibleInViewport.clear();
+      clearPrefetchTiles();
       determineCurrentDetail();
+      // if we saw this coming, what we've prefetched for this zoom is promoted like any other prefetched tile
+      if (mPrefetchZoom == mZoom) {
+        mPrefetchTiles.addAll(mZoomPrefetchTiles);
+        mZoomPrefetchTiles.clear();
+        mPrefetchZoom = -1;
+      } else {
+        clearZoomPrefetchTiles();
+      }
+    }
+    if (!zoomChanged) {
+      projectScaleTrend(currentScale);
     }
     updateViewportAndComputeTilesThrottled();
     // if this is setDirty or postInvalidate, things get wonky
@@ -353,38 +495,116 @@ public class TileView extends ScalingScrollView implements
   }
 
   private void determineCurrentDetail() {
+    if (mZoom < 0) {
+      mZoom = 0;
+    }
+    Detail detail = getDetailForZoom(mZoom);
+    if (detail != null) {
+      mCurrentDetail = detail;
+      mImageSample = getImageSampleForZoom(mZoom, detail);
+    }
+  }
+
+  private Detail getDetailForZoom(int zoom) {
     // if zoom from scale is greater than the number of defined detail levels, we definitely don't have it
     // since it's not an exact match, we need to patch together bitmaps from the last known zoom level
     // so if we have a detail level defined for zoom level 1 (sample 2) but are on zoom level 2 (sample 4) we want an actual sample of 2
     // similarly if we have definition for sample zoom 1 / sample 2 and are on zoom 3 / sample 8, we want actual sample of 4
     // this is also the case for the third block, below.
-    if (mZoom >= mDetailList.size()) {
-      mCurrentDetail = mDetailList.getHighestDefined();
-      int zoomDelta = mZoom - mCurrentDetail.getZoom();
-      mImageSample = 1 << zoomDelta;
-      return;
+    if (zoom >= mDetailList.size()) {
+      return mDetailList.getHighestDefined();
     }
-    if (mZoom < 0) {
-      mZoom = 0;
-    }
-    // best case, it's an exact match, use that and set sample to 1
-    Detail exactMatch = mDetailList.get(mZoom);
+    // best case, it's an exact match, use that and sample will be 1
+    Detail exactMatch = mDetailList.get(zoom);
     if (exactMatch != null) {
-      mCurrentDetail = exactMatch;
-      mImageSample = 1;
-      return;
+      return exactMatch;
     }
     // it's not bigger than what we have defined, but we don't have an exact match, start at the requested zoom and work back
     // toward 0 (full size) until we find any defined detail level
-    for (int i = mZoom - 1; i >= 0; i--) {
+    for (int i = zoom - 1; i >= 0; i--) {
       Detail current = mDetailList.get(i);
       if (current != null) {  // if it's defined
-        mCurrentDetail = current;
-        int zoomDelta = mZoom - mCurrentDetail.getZoom();
-        mImageSample = 1 << zoomDelta;
-        return;
+        return current;
       }
     }
+    return null;
+  }
+
+  private int getImageSampleForZoom(int zoom, Detail detail) {
+    return 1 << (zoom - detail.getZoom());
+  }
+
+  // scale velocity is tracked in zoom levels (log2 of scale), so pinching in and out look the same
+  private void updateScaleTrend(float currentScale, float previousScale) {
+    long now = SystemClock.uptimeMillis();
+    long elapsed = now - mLastScaleChangeTime;
+    mLastScaleChangeTime = now;
+    if (elapsed > SCALE_TREND_STALE_INTERVAL || previousScale <= 0) {
+      mScaleVelocity = 0;
+      return;
+    }
+    if (elapsed > 0) {
+      float velocity = (float) (Math.log(previousScale / currentScale) / Math.log(2)) * 1000f / elapsed;
+      mScaleVelocity += (velocity - mScaleVelocity) * SCALE_TREND_SMOOTHING;
+    }
+  }
+
+  // if the scale keeps moving the way it's going, and that crosses into the next zoom level, start on that level now
+  private void projectScaleTrend(float currentScale) {
+    if (mScaleVelocity == 0) {
+      return;
+    }
+    float projectedScale = currentScale / (float) Math.pow(2, mScaleVelocity * SCALE_LOOKAHEAD_SECONDS);
+    int projectedZoom = Math.max(0, Detail.getZoomFromPercent(projectedScale));
+    if (projectedZoom == mZoom) {
+      return;
+    }
+    // only look one level ahead
+    int zoom = projectedZoom > mZoom ? mZoom + 1 : mZoom - 1;
+    // keep the projected scale within that level, zoom z covers scales in (1 / 2^(z + 1), 1 / 2^z]
+    float scale = Math.max(1f / (1 << (zoom + 1)), Math.min(1f / (1 << zoom), projectedScale));
+    prefetchZoom(zoom, scale);
+  }
+
+  private void prefetchZoom(int zoom, float scale) {
+    if (mExecutor.isShutdown() || mDetailList.size() == 0 || getUnscaledContentWidth() == 0) {
+      return;
+    }
+    Detail detail = getDetailForZoom(zoom);
+    if (detail == null) {
+      return;
+    }
+    int imageSample = getImageSampleForZoom(zoom, detail);
+    // the current level is already being taken care of
+    if (detail == mCurrentDetail && imageSample == mImageSample) {
+      return;
+    }
+    // project the viewport to the new scale, around the same point in the content
+    float centerX = mScaledViewport.exactCenterX();
+    float centerY = mScaledViewport.exactCenterY();
+    float cellSize = mTileSize * scale * detail.getSample();
+    float halfWidth = getWidth() / 2f;
+    float halfHeight = getHeight() / 2f;
+    mNewlyPrefetchedTiles.clear();
+    populateTileGrid(mPrefetchGrid, detail, imageSample,
+        (centerX * scale - halfWidth) / cellSize,
+        (centerY * scale - halfHeight) / cellSize,
+        (centerX * scale + halfWidth) / cellSize,
+        (centerY * scale + halfHeight) / cellSize);
+    addPrefetchTiles(mPrefetchGrid, detail, imageSample, null);
+    if (zoom != mPrefetchZoom) {
+      clearZoomPrefetchTiles();
+      mPrefetchZoom = zoom;
+    }
+    reconcilePrefetchTiles(mZoomPrefetchTiles, centerX, centerY, zoom);
+  }
+
+  private void clearZoomPrefetchTiles() {
+    for (Tile tile : mZoomPrefetchTiles) {
+      tile.destroy();
+    }
+    mZoomPrefetchTiles.clear();
+    mPrefetchZoom = -1;
   }
 
   private void establishDirtyRegion() {
@@ -449,10 +669,116 @@ public class TileView extends ScalingScrollView implements
   // Implementing Handler.Callback handleMessage to react to throttled requests to start a render op
   @Override
   public boolean handleMessage(Message message) {
+    if (message.what == TRIM_RESTORE_ID) {
+      setBudgetFraction(1);
+      return true;
+    }
     updateViewportAndComputeTiles();
     return true;
   }
 
+  @Override
+  protected void onAttachedToWindow() {
+    super.onAttachedToWindow();
+    getContext().getApplicationContext().registerComponentCallbacks(mComponentCallbacks);
+  }
+
+  @Override
+  protected void onDetachedFromWindow() {
+    getContext().getApplicationContext().unregisterComponentCallbacks(mComponentCallbacks);
+    super.onDetachedFromWindow();
+  }
+
+  @Override
+  protected void onWindowVisibilityChanged(int visibility) {
+    super.onWindowVisibilityChanged(visibility);
+    // pressure that came from being in the background is over once we're back
+    if (visibility == View.VISIBLE && mIsTrimmedForBackground) {
+      mRenderThrottle.removeMessages(TRIM_RESTORE_ID);
+      setBudgetFraction(1);
+    }
+  }
+
+  /**
+   * Shrinks the memory cache, bitmap pool, tiles kept from the previous zoom, and pending disk cache writes, to a
+   * fraction of their budget that depends on the level.  The TileView registers for these callbacks itself while
+   * attached, so there's usually no need to call this directly.  The full budget comes back once the TileView is
+   * visible again (for background levels), or after a while without further trim callbacks.
+   *
+   * @param level A ComponentCallbacks2.TRIM_MEMORY_* level.
+   */
+  public void onTrimMemory(int level) {
+    float fraction = getBudgetFractionForTrimLevel(level);
+    if (fraction >= 1) {
+      return;
+    }
+    mIsTrimmedForBackground = level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN;
+    if (fraction < mBudgetFraction) {
+      setBudgetFraction(fraction);
+    }
+    mRenderThrottle.removeMessages(TRIM_RESTORE_ID);
+    mRenderThrottle.sendEmptyMessageDelayed(TRIM_RESTORE_ID, TRIM_RESTORE_DELAY);
+  }
+
+  private static float getBudgetFractionForTrimLevel(int level) {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+      return 0;
+    }
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+      return 0.1f;
+    }
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+      return 0.25f;
+    }
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+      return 0.5f;
+    }
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+      return 0.25f;
+    }
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+      return 0.5f;
+    }
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+      return 0.75f;
+    }
+    return 1;
+  }
+
+  private void setBudgetFraction(float fraction) {
+    mBudgetFraction = fraction;
+    if (fraction >= 1) {
+      mIsTrimmedForBackground = false;
+    } else {
+      trimPreviouslyDrawnTiles(fraction);
+    }
+    // each pending write holds on to a bitmap, a write we drop just means that tile isn't on disk next time
+    if (mDiskCacheWriter != null) {
+      mDiskCacheWriter.setBudgetFraction(fraction);
+    }
+    // previously drawn tiles are handed to the memory cache when destroyed, so trim that after them
+    if (mMemoryCache != null) {
+      mMemoryCache.setBudgetFraction(fraction);
+    }
+    if (mBitmapPool != null) {
+      mBitmapPool.setBudgetFraction(fraction);
+    }
+  }
+
+  // these are only a stand-in while the current zoom decodes, so drop the oldest first
+  private void trimPreviouslyDrawnTiles(float fraction) {
+    int excess = mPreviouslyDrawnTiles.size() - (int) (mPreviouslyDrawnTiles.size() * fraction);
+    if (excess <= 0) {
+      return;
+    }
+    Iterator<Tile> iterator = mPreviouslyDrawnTiles.iterator();
+    while (iterator.hasNext() && excess-- > 0) {
+      iterator.next().destroy();
+      iterator.remove();
+    }
+    mTilingBitmapView.invalidate();
+  }
+
   private void updateViewportAndComputeTiles() {
     if (isReady()) {
       updateViewport();
@@ -494,7 +820,7 @@ public class TileView extends ScalingScrollView implements
   }
 
   public Tile createTile() {
-    return new Tile(mTileSize, mBitmapConfig, this, this, mExecutor, mDiskCacheExecutor, mStreamProvider, mMemoryCache, mDiskCache, mBitmapPool, mDiskCachePolicy);
+    return new Tile(mTileSize, mBitmapConfig, this, this, mExecutor, mDiskCacheWriter, mStreamProvider, mMemoryCache, mDiskCache, mBitmapPool, mDiskCachePolicy, mRegionDecoderCache, mDecodeExecutor, mRetryScheduler, mRevalidator);
   }
 
   private void computeAndRenderTilesInViewport() {
@@ -526,12 +852,219 @@ public class TileView extends ScalingScrollView implements
     // we use add all instead of straight replacement because lets say tile(3:2) was being decoded - when tile(3:2) comes up in
     // mNewlyVisibleTiles, it won't be added to mTilesVisibleInViewport because Tile.equals will return true
     // if we just swapped out the set (mTilesVisibleInViewport = mNewlyVisibleTiles), all those tiles would lose their state
+    boolean isSuppressingDecodes = isSuppressingDecodes();
+    if (isSuppressingDecodes) {
+      suppressDecodes();
+    }
+    boolean tilesWerePromoted = promotePrefetchedTiles();
     boolean tilesWereAdded = mTilesVisibleInViewport.addAll(mNewlyVisibleTiles);
-    if (tilesWereAdded) {
+    if (tilesWereAdded || tilesWerePromoted) {
+      if (mExecutor.isPrioritizingByDistance()) {
+        prioritizeTilesInViewport();
+      }
       mExecutor.queue(mTilesVisibleInViewport);
+      if (mExecutor.isPrioritizingByDistance()) {
+        reprioritizeIfMoved();
+      }
+    }
+    // while suppressing, where a fling will stop is prefetched even without a prefetch ring
+    if (mPrefetchMargin > 0 || isSuppressingDecodes) {
+      computeAndPrefetchTiles(isSuppressingDecodes);
+    } else if (!mPrefetchTiles.isEmpty()) {
+      // left over from a zoom prefetch or fling, and not promoted
+      clearPrefetchTiles();
     }
   }
 
+  private boolean isSuppressingDecodes() {
+    return mFlingSuppressionVelocity > 0 && mMotionPredictor.getSpeed() > mFlingSuppressionVelocity;
+  }
+
+  // we're moving fast enough that most of what we pass over would be gone before it's decoded, so only take on tiles
+  // that are cheap (already in memory) or where a fling is going to stop, and drop anything else that hasn't started
+  private void suppressDecodes() {
+    populateFlingEndGrid();
+    Iterator<Tile> iterator = mNewlyVisibleTiles.iterator();
+    while (iterator.hasNext()) {
+      Tile tile = iterator.next();
+      if (!mTilesVisibleInViewport.contains(tile) && !isWorthDecodingWhileSuppressed(tile)) {
+        iterator.remove();
+        mTilePool.put(tile);
+      }
+    }
+    iterator = mTilesVisibleInViewport.iterator();
+    while (iterator.hasNext()) {
+      Tile tile = iterator.next();
+      if (tile.getState() == Tile.State.IDLE && tile.isPending() && !isWorthDecodingWhileSuppressed(tile)) {
+        tile.destroy();
+        iterator.remove();
+      }
+    }
+    // we may not get another scroll change after the last fast one, so make sure we come back once things settle
+    if (!mRenderThrottle.hasMessages(RENDER_THROTTLE_ID)) {
+      mRenderThrottle.sendEmptyMessageDelayed(RENDER_THROTTLE_ID, FLING_SETTLE_RECHECK_INTERVAL);
+    }
+  }
+
+  private boolean isWorthDecodingWhileSuppressed(Tile tile) {
+    return tile.isCached() || (mMotionPredictor.isFlinging() && mFlingEndGrid.contains(tile.getColumn(), tile.getRow()));
+  }
+
+  // the viewport where the current fling will stop, plus a tile on each side
+  private boolean populateFlingEndGrid() {
+    if (!mMotionPredictor.isFlinging()) {
+      return false;
+    }
+    float cellSize = mTileSize * getScale() * mCurrentDetail.getSample();
+    float left = mMotionPredictor.getFlingFinalX() / cellSize - mImageSample;
+    float top = mMotionPredictor.getFlingFinalY() / cellSize - mImageSample;
+    float right = (mMotionPredictor.getFlingFinalX() + mViewport.width()) / cellSize + mImageSample;
+    float bottom = (mMotionPredictor.getFlingFinalY() + mViewport.height()) / cellSize + mImageSample;
+    populateTileGrid(mFlingEndGrid, mCurrentDetail, mImageSample, left, top, right, bottom);
+    return true;
+  }
+
+  // prefetched tiles that have come into view become visible tiles, keeping whatever progress they've made
+  // one that's already been decoded is idle again, and will be queued and pick up its bitmap from the memory cache
+  private boolean promotePrefetchedTiles() {
+    boolean tilesWerePromoted = false;
+    Iterator<Tile> iterator = mPrefetchTiles.iterator();
+    while (iterator.hasNext()) {
+      Tile tile = iterator.next();
+      if (mNewlyVisibleTiles.contains(tile) && !mTilesVisibleInViewport.contains(tile)) {
+        tile.setPrefetch(false);
+        // if it's still waiting in line, take it out so it's queued again with its new priority
+        mExecutor.cancel(tile);
+        mTilesVisibleInViewport.add(tile);
+        iterator.remove();
+        tilesWerePromoted = true;
+      }
+    }
+    return tilesWerePromoted;
+  }
+
+  private void computeAndPrefetchTiles(boolean isSuppressingDecodes) {
+    if (mExecutor.isShutdown()) {
+      return;
+    }
+    mNewlyPrefetchedTiles.clear();
+    // during a fling, get what will be visible where it's going to stop
+    if (populateFlingEndGrid()) {
+      addPrefetchTiles(mFlingEndGrid, mCurrentDetail, mImageSample, mGrid);
+    }
+    // and unless we're moving too fast for it to matter, what's around us
+    if (!isSuppressingDecodes && mPrefetchMargin > 0) {
+      computePrefetchRing();
+    }
+    reconcilePrefetchTiles(mPrefetchTiles, mScaledViewport.exactCenterX(), mScaledViewport.exactCenterY(), mZoom);
+  }
+
+  private void computePrefetchRing() {
+    float cellSize = mTileSize * getScale() * mCurrentDetail.getSample();
+    // the margin is in tiles, and each tile covers mImageSample cells
+    int margin = mPrefetchMargin * mImageSample;
+    int maximumLead = margin * MAXIMUM_PREFETCH_LEAD;
+    // extend the ring on the side we're moving toward, by about how far we'll get in the lookahead
+    float velocityX = mMotionPredictor.getVelocityX();
+    float velocityY = mMotionPredictor.getVelocityY();
+    int leadX = (int) Math.min(maximumLead, Math.abs(velocityX) * PREFETCH_LOOKAHEAD_SECONDS / cellSize);
+    int leadY = (int) Math.min(maximumLead, Math.abs(velocityY) * PREFETCH_LOOKAHEAD_SECONDS / cellSize);
+    populateTileGrid(mPrefetchGrid, mCurrentDetail, mImageSample,
+        mViewport.left / cellSize - margin - (velocityX < 0 ? leadX : 0),
+        mViewport.top / cellSize - margin - (velocityY < 0 ? leadY : 0),
+        mViewport.right / cellSize + margin + (velocityX > 0 ? leadX : 0),
+        mViewport.bottom / cellSize + margin + (velocityY > 0 ? leadY : 0));
+    addPrefetchTiles(mPrefetchGrid, mCurrentDetail, mImageSample, mGrid);
+  }
+
+  // destroys whatever in prefetchTiles is no longer wanted, and queues what's newly wanted
+  private void reconcilePrefetchTiles(Set<Tile> prefetchTiles, float centerX, float centerY, int zoom) {
+    Iterator<Tile> iterator = prefetchTiles.iterator();
+    while (iterator.hasNext()) {
+      Tile tile = iterator.next();
+      if (!mNewlyPrefetchedTiles.contains(tile)) {
+        tile.destroy();
+        iterator.remove();
+      }
+    }
+    for (Tile tile : mNewlyPrefetchedTiles) {
+      if (prefetchTiles.add(tile)) {
+        if (mExecutor.isPrioritizingByDistance()) {
+          tile.updatePriority(centerX, centerY, zoom);
+        }
+        mExecutor.execute(tile);
+      } else {
+        mTilePool.put(tile);
+      }
+    }
+  }
+
+  private void addPrefetchTiles(Grid grid, Detail detail, int imageSample, @Nullable Grid excluded) {
+    for (int row = grid.rows.start; row < grid.rows.end; row += imageSample) {
+      for (int column = grid.columns.start; column < grid.columns.end; column += imageSample) {
+        // visible tiles are already taken care of
+        if (excluded != null && excluded.contains(column, row)) {
+          continue;
+        }
+        Tile tile = mTilePool.get();
+        tile.setColumn(column);
+        tile.setRow(row);
+        tile.setDetail(detail);
+        tile.setImageSample(imageSample);
+        // no need to decode what's already waiting in memory
+        if (tile.isCached()) {
+          mTilePool.put(tile);
+          continue;
+        }
+        tile.setPrefetch(true);
+        if (!mNewlyPrefetchedTiles.add(tile)) {
+          mTilePool.put(tile);
+        }
+      }
+    }
+  }
+
+  private void clearPrefetchTiles() {
+    for (Tile tile : mPrefetchTiles) {
+      tile.destroy();
+    }
+    mPrefetchTiles.clear();
+  }
+
+  // like populateTileGridFromViewport, but for any area (in cells), and limited to cells that actually have content
+  private void populateTileGrid(Grid grid, Detail detail, int imageSample, float left, float top, float right, float bottom) {
+    float contentCellSize = mTileSize * detail.getSample();
+    int columns = Maths.roundUpWithStep(getUnscaledContentWidth() / contentCellSize, imageSample);
+    int rows = Maths.roundUpWithStep(getUnscaledContentHeight() / contentCellSize, imageSample);
+    grid.rows.start = Math.max(0, Maths.roundDownWithStep(top, imageSample));
+    grid.rows.end = Math.min(rows, Maths.roundUpWithStep(bottom, imageSample));
+    grid.columns.start = Math.max(0, Maths.roundDownWithStep(left, imageSample));
+    grid.columns.end = Math.min(columns, Maths.roundUpWithStep(right, imageSample));
+  }
+
+  // cheap, only the visible tiles are touched, and queued work keeps the priority it was queued with
+  private void prioritizeTilesInViewport() {
+    float centerX = mScaledViewport.exactCenterX();
+    float centerY = mScaledViewport.exactCenterY();
+    for (Tile tile : mTilesVisibleInViewport) {
+      tile.updatePriority(centerX, centerY, mZoom);
+    }
+  }
+
+  // re-sorting the queue touches everything pending, so only do it once the order could have changed much
+  private void reprioritizeIfMoved() {
+    float centerX = mScaledViewport.exactCenterX();
+    float centerY = mScaledViewport.exactCenterY();
+    float distance = REPRIORITIZE_DISTANCE * mTileSize * mCurrentDetail.getSample() * mImageSample;
+    if (mZoom == mPrioritizedZoom && Math.abs(centerX - mPrioritizedCenterX) < distance && Math.abs(centerY - mPrioritizedCenterY) < distance) {
+      return;
+    }
+    mPrioritizedCenterX = centerX;
+    mPrioritizedCenterY = centerY;
+    mPrioritizedZoom = mZoom;
+    mExecutor.reprioritize();
+  }
+
   private boolean isTileVisible(Tile tile) {
     return mTilesVisibleInViewport.contains(tile);
   }
@@ -573,14 +1106,26 @@ public class TileView extends ScalingScrollView implements
    */
   public void destroy(boolean alsoCloseDiskCache) {
     mExecutor.shutdownNow();
-    mDiskCacheExecutor.shutdownNow();
+    if (mDecodeExecutor != null) {
+      mDecodeExecutor.shutdownNow();
+      mDecodeExecutor.getBufferPool().clear();
+    }
+    mRetryScheduler.shutdown();
     mMemoryCache.clear();
+    mBitmapPool.clear();
     // note we are NOT clearing the diskcache by default this point, see the javadoc for that method for rational
-    if (mDiskCache != null && alsoCloseDiskCache) {
-      mDiskCacheExecutor.execute(mDiskCache::clear);
+    if (mDiskCacheWriter != null) {
+      mDiskCacheWriter.shutdown(alsoCloseDiskCache);
+    }
+    if (mRevalidator != null) {
+      mRevalidator.shutdown();
     }
     mTilePool.clear();
+    if (mRegionDecoderCache != null) {
+      mRegionDecoderCache.clear();
+    }
     mRenderThrottle.removeMessages(RENDER_THROTTLE_ID);
+    mRenderThrottle.removeMessages(TRIM_RESTORE_ID);
   }
 
   public void destroy() {
@@ -629,9 +1174,15 @@ public class TileView extends ScalingScrollView implements
   private static class Grid {
     Range rows = new Range();
     Range columns = new Range();
+    boolean contains(int column, int row) {
+      return columns.contains(column) && rows.contains(row);
+    }
     private static class Range {
       int start;
       int end;
+      boolean contains(int value) {
+        return value >= start && value < end;
+      }
     }
   }
 
@@ -639,16 +1190,71 @@ public class TileView extends ScalingScrollView implements
     void install(TileView tileView);
   }
 
+  /**
+   * Keys are packed tile keys, see TileKey.
+   */
   public interface BitmapCache {
-    Bitmap get(String key);
-    Bitmap put(String key, Bitmap value);
-    Bitmap remove(String key);
-    boolean has(String key);
+    Bitmap get(long key);
+    /**
+     * Caches that decode on the way out can use the tile's config and bitmap pool.
+     */
+    default Bitmap get(long key, Tile tile) {
+      return get(key);
+    }
+    Bitmap put(long key, Bitmap value);
+    /**
+     * Caches that can revalidate store the validators along with the bitmap.
+     */
+    default Bitmap put(long key, Bitmap value, Validators validators) {
+      return put(key, value);
+    }
+    /**
+     * Puts over an existing entry.  Caches that can swap an entry in place should, so it's never missing in between.
+     */
+    default Bitmap replace(long key, Bitmap value, Validators validators) {
+      remove(key);
+      return put(key, value, validators);
+    }
+    Bitmap remove(long key);
+    boolean has(long key);
     void clear();
+    /**
+     * Called under memory pressure with a fraction below 1, and with 1 when the pressure has passed.
+     */
+    default void setBudgetFraction(float fraction){}
+    /**
+     * Enabling starts a fresh set of counters, disabling drops them.
+     */
+    default void setStatsEnabled(boolean enabled){}
+    /**
+     * @return The cache's counters, or null if stats aren't enabled (or supported).
+     */
+    default CacheStats getStats() {
+      return null;
+    }
   }
 
   public interface BitmapPool {
     Bitmap getBitmapForReuse(Tile tile);
+    /**
+     * @return A mutable bitmap of the config with an allocation of at least byteCount, or null if there isn't one.
+     */
+    default Bitmap acquire(Bitmap.Config config, int byteCount) {
+      return null;
+    }
+    /**
+     * Offers a bitmap nothing else references any more.  The pool may keep it for reuse, or let it go.
+     */
+    default void release(Bitmap bitmap){}
+    default void clear(){}
+    /**
+     * Called under memory pressure with a fraction below 1, and with 1 when the pressure has passed.
+     */
+    default void setBudgetFraction(float fraction){}
+    default void setStatsEnabled(boolean enabled){}
+    default CacheStats getStats() {
+      return null;
+    }
   }
 
   public interface Listener {
@@ -717,9 +1323,22 @@ public class TileView extends ScalingScrollView implements
 
   public static class Builder {
 
+    // the memory budget is shared: the default bitmap pool gets this fraction (1 / n) of it
+    private static final int BITMAP_POOL_SHARE = 4;
+    // bitmaps waiting to be written to disk get the same share, and the memory cache gets what's left
+    private static final int PENDING_DISK_WRITE_SHARE = 4;
+
     private TileView mTileView;
     private StreamProvider mStreamProvider;
     private int mMemoryCacheSize = (int) ((Runtime.getRuntime().maxMemory() / 1024) / 4);
+    private BitmapCache mMemoryCache;
+    private BitmapPool mBitmapPool;
+    private boolean mCacheStatsEnabled;
+    private DiskCache.Encoding mDiskCacheEncoding = DiskCache.Encoding.PNG;
+    private int mDiskCacheQuality;
+    private int mMaximumPendingDiskCacheWrites = -1;
+    private long mDiskCacheMaxAge;
+    private long mDiskCacheStaleWhileRevalidate;
     private int mDiskCacheSize = 1024 * 100;
     private DiskCachePolicy mDiskCachePolicy;
 
@@ -781,6 +1400,167 @@ public class TileView extends ScalingScrollView implements
       return this;
     }
 
+    /**
+     * With SourceMode.SINGLE_IMAGE, each detail level's data should point at one large image (rather than a template
+     * for a set of tiles), and tiles will be decoded from regions of that image on demand.
+     *
+     * @param sourceMode The kind of image source each detail level describes.
+     * @return The Builder instance.
+     */
+    public Builder setSourceMode(SourceMode sourceMode) {
+      mTileView.mRegionDecoderCache = sourceMode == SourceMode.SINGLE_IMAGE ? new RegionDecoderCache() : null;
+      return this;
+    }
+
+    public Builder setPrioritizeTilesNearCenter(boolean prioritizeTilesNearCenter) {
+      mTileView.mExecutor.setPrioritizingByDistance(prioritizeTilesNearCenter);
+      return this;
+    }
+
+    /**
+     * With staged decoding, the render executor only fetches tile bytes (often a network read), using more threads
+     * than there are cores, and hands them to a separate core-sized executor to be decoded.  This keeps slow reads
+     * from starving decodes.
+     *
+     * @param stagedDecoding True to split fetching and decoding into separate stages.
+     * @return The Builder instance.
+     */
+    public Builder setStagedDecoding(boolean stagedDecoding) {
+      if (stagedDecoding) {
+        mTileView.mExecutor.setPoolSize(TileRenderExecutor.STAGED_FETCH_THREADS);
+        mTileView.mDecodeExecutor = new TileDecodeExecutor(TileRenderExecutor.STAGED_FETCH_THREADS);
+      }
+      return this;
+    }
+
+    /**
+     * Tiles within this many tiles of the viewport are decoded ahead of time into the memory cache, at lower priority
+     * than visible tiles.  The ring extends further in the direction of a scroll, and during a fling also covers
+     * where the fling is predicted to stop.
+     *
+     * @param prefetchMargin The number of tiles past each edge of the viewport to prefetch, or 0 to disable.
+     * @return The Builder instance.
+     */
+    public Builder setPrefetchMargin(int prefetchMargin) {
+      mTileView.mPrefetchMargin = prefetchMargin;
+      return this;
+    }
+
+    /**
+     * While the TileView is moving faster than this, tiles scrolled into view are only decoded if they're already in the
+     * memory cache or near where a fling is predicted to stop, and queued tiles that haven't started are dropped.
+     * Normal scheduling resumes once it slows down or settles.
+     *
+     * @param flingSuppressionVelocity Speed in pixels per second, or 0 to never suppress decodes.
+     * @return The Builder instance.
+     */
+    public Builder setFlingSuppressionVelocity(float flingSuppressionVelocity) {
+      mTileView.mFlingSuppressionVelocity = flingSuppressionVelocity;
+      return this;
+    }
+
+    /**
+     * Retries (see TileView.retryTileDecode) wait a random time between half and all of the backoff, which doubles with
+     * each retry of a tile, from the initial backoff up to the maximum.
+     *
+     * @param initialBackoff Milliseconds for the first retry.
+     * @param maximumBackoff The most milliseconds any retry will wait.
+     * @return The Builder instance.
+     */
+    public Builder setRetryBackoff(long initialBackoff, long maximumBackoff) {
+      mTileView.mRetryScheduler.setBackoff(initialBackoff, maximumBackoff);
+      return this;
+    }
+
+    /**
+     * After this many failures in a row opening streams from one source (a host, for http templates), requests to it
+     * fail fast for the open interval, which doubles each time a trial request fails, up to the maximum.
+     *
+     * @param failureThreshold Consecutive failures before the circuit opens.
+     * @param openInterval Milliseconds the circuit stays open the first time.
+     * @param maximumOpenInterval The most milliseconds the circuit will stay open.
+     * @return The Builder instance.
+     */
+    public Builder setCircuitBreaker(int failureThreshold, long openInterval, long maximumOpenInterval) {
+      mTileView.mRetryScheduler.setCircuitBreaker(failureThreshold, openInterval, maximumOpenInterval);
+      return this;
+    }
+
+    /**
+     * Use a custom memory cache rather than the default MemoryCache.  The memory cache size is ignored.
+     *
+     * @param memoryCache The cache decoded tiles are kept in when they're not being drawn.
+     * @return The Builder instance.
+     */
+    public Builder setMemoryCache(BitmapCache memoryCache) {
+      mMemoryCache = memoryCache;
+      return this;
+    }
+
+    /**
+     * Use a custom pool of bitmaps for tiles to decode into, rather than the default BucketedBitmapPool.  If the
+     * default MemoryCache is used, bitmaps it evicts are released to this pool.
+     *
+     * @param bitmapPool The pool of reusable bitmaps.
+     * @return The Builder instance.
+     */
+    public Builder setBitmapPool(BitmapPool bitmapPool) {
+      mBitmapPool = bitmapPool;
+      return this;
+    }
+
+    /**
+     * Counts hits, misses, evictions, bytes written and disk latency for the memory cache, disk cache and bitmap pool.
+     * Off by default, when the counters cost nothing.  Read them with TileView.getMemoryCacheStats and friends.
+     *
+     * @param cacheStatsEnabled True to keep cache stats.
+     * @return The Builder instance.
+     */
+    public Builder setCacheStatsEnabled(boolean cacheStatsEnabled) {
+      mCacheStatsEnabled = cacheStatsEnabled;
+      return this;
+    }
+
+    /**
+     * @param encoding How tiles are written to the disk cache, see DiskCache.Encoding.
+     * @param quality 0 to 100, only used by JPEG and WEBP.
+     * @return The Builder instance.
+     */
+    public Builder setDiskCacheEncoding(DiskCache.Encoding encoding, int quality) {
+      mDiskCacheEncoding = encoding;
+      mDiskCacheQuality = quality;
+      return this;
+    }
+
+    /**
+     * With DiskCachePolicy.CACHE_ALL and a StreamProvider that can revalidate (like StreamProviderHttpPooled), tiles
+     * on disk are only fresh for maxAge.  After that they're still drawn for staleWhileRevalidate while the source is
+     * asked in the background whether they changed.  Past both, the source is asked before the tile is drawn.  By
+     * default tiles on disk never go stale.
+     *
+     * @param maxAge Milliseconds a tile is fresh for, or 0 for forever.
+     * @param staleWhileRevalidate Milliseconds after that a stale tile is drawn while it's revalidated.
+     * @return The Builder instance.
+     */
+    public Builder setDiskCacheMaxAge(long maxAge, long staleWhileRevalidate) {
+      mDiskCacheMaxAge = maxAge;
+      mDiskCacheStaleWhileRevalidate = staleWhileRevalidate;
+      return this;
+    }
+
+    /**
+     * Tiles are written to the disk cache behind rendering.  When more than this many are waiting, the oldest is
+     * dropped (so that tile is decoded again next time, rather than read from disk).  Waiting tiles are also limited
+     * to a share of the memory cache size, which is taken out of what the memory cache itself gets.
+     *
+     * @param maximumPendingDiskCacheWrites The most tiles to hold while they wait to be written.
+     * @return The Builder instance.
+     */
+    public Builder setMaximumPendingDiskCacheWrites(int maximumPendingDiskCacheWrites) {
+      mMaximumPendingDiskCacheWrites = maximumPendingDiskCacheWrites;
+      return this;
+    }
+
     public Builder setMemoryCacheSize(int memoryCacheSize) {
       mMemoryCacheSize = memoryCacheSize;
       return this;
@@ -820,19 +1600,52 @@ public class TileView extends ScalingScrollView implements
       if (mStreamProvider == null) {
         mStreamProvider = new StreamProviderAssets();
       }
-      MemoryCache memoryCache = new MemoryCache(mMemoryCacheSize);
       DiskCache diskCache = getDiskCacheSafely(activity);
+      // the pool and pending disk writes take their shares out of the memory budget, in bytes (the size is in kilobytes)
+      long memoryBudget = mMemoryCacheSize * 1024L;
+      long bitmapPoolBytes = mBitmapPool != null ? 0 : memoryBudget / BITMAP_POOL_SHARE;
+      long pendingDiskWriteBytes = diskCache != null ? memoryBudget / PENDING_DISK_WRITE_SHARE : 0;
+      BitmapPool bitmapPool = mBitmapPool != null ? mBitmapPool : new BucketedBitmapPool(bitmapPoolBytes);
+      BitmapCache memoryCache = mMemoryCache != null ? mMemoryCache : MemoryCache.withByteBudget(memoryBudget - bitmapPoolBytes - pendingDiskWriteBytes, bitmapPool);
+      if (diskCache != null) {
+        diskCache.setEncoding(mDiskCacheEncoding, mDiskCacheQuality);
+        diskCache.setBitmapPool(bitmapPool);
+      }
+      DiskCacheWriter diskCacheWriter = diskCache == null ? null : createDiskCacheWriter(diskCache, pendingDiskWriteBytes);
+      Revalidator revalidator = diskCache == null ? null : createRevalidator(diskCache, diskCacheWriter, memoryCache);
+      if (mCacheStatsEnabled) {
+        bitmapPool.setStatsEnabled(true);
+        memoryCache.setStatsEnabled(true);
+        if (diskCache != null) {
+          diskCache.setStatsEnabled(true);
+        }
+      }
       activity.runOnUiThread(() -> {
         mTileView.mStreamProvider = mStreamProvider;
-        // use memory cache instance for both memory cache and bitmap pool.
-        // maybe allows these to be set in the future
         mTileView.mMemoryCache = memoryCache;
-        mTileView.mBitmapPool = memoryCache;
+        mTileView.mBitmapPool = bitmapPool;
         mTileView.mDiskCache = diskCache;
+        mTileView.mDiskCacheWriter = diskCacheWriter;
+        mTileView.mRevalidator = revalidator;
         mTileView.prepare();
       });
     }
 
+    private DiskCacheWriter createDiskCacheWriter(DiskCache diskCache, long maximumPendingBytes) {
+      if (mMaximumPendingDiskCacheWrites > 0) {
+        return new DiskCacheWriter(diskCache, maximumPendingBytes, mMaximumPendingDiskCacheWrites);
+      }
+      return new DiskCacheWriter(diskCache, maximumPendingBytes);
+    }
+
+    // tiles on disk only go stale if they were given a max age and the provider can ask whether they changed
+    private Revalidator createRevalidator(DiskCache diskCache, DiskCacheWriter diskCacheWriter, BitmapCache memoryCache) {
+      if (mDiskCachePolicy != DiskCachePolicy.CACHE_ALL || mDiskCacheMaxAge <= 0 || !(mStreamProvider instanceof RevalidatingStreamProvider)) {
+        return null;
+      }
+      return new Revalidator((RevalidatingStreamProvider) mStreamProvider, mTileView.mRetryScheduler, diskCache, diskCacheWriter, memoryCache, mTileView.mBitmapConfig, mDiskCacheMaxAge, mDiskCacheStaleWhileRevalidate);
+    }
+
     private DiskCache getDiskCacheSafely(Context context) {
       if (mDiskCachePolicy != DiskCachePolicy.CACHE_NONE && mDiskCacheSize > 0) {
         try {
@@ -854,4 +1667,8 @@ public class TileView extends ScalingScrollView implements
     CACHE_NONE, CACHE_PATCHES, CACHE_ALL
   }
 
+  public enum SourceMode {
+    TILES, SINGLE_IMAGE
+  }
+
 }
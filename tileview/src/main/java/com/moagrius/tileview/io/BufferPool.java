@@ -0,0 +1,92 @@
+package com.moagrius.tileview.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of growable byte arrays, used to read an entire tile into memory before it's decoded, so the thread
+ * doing the (possibly slow) read isn't the same one doing the decode.
+ */
+public class BufferPool {
+
+  private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+  // a buffer that had to grow past this for one unusually large tile is let go rather than pooled
+  private static final int MAXIMUM_POOLED_BUFFER_SIZE = 1024 * 1024;
+
+  private final Queue<Buffer> mBuffers = new ConcurrentLinkedQueue<>();
+  // ConcurrentLinkedQueue.size is O(n), so keep our own count
+  private final AtomicInteger mPooledCount = new AtomicInteger();
+  private final int mMaximumPooledCount;
+
+  public BufferPool(int maximumPooledCount) {
+    mMaximumPooledCount = maximumPooledCount;
+  }
+
+  public Buffer obtain() {
+    Buffer buffer = mBuffers.poll();
+    if (buffer == null) {
+      return new Buffer();
+    }
+    mPooledCount.decrementAndGet();
+    buffer.mLength = 0;
+    return buffer;
+  }
+
+  public void release(Buffer buffer) {
+    if (buffer == null || buffer.mData.length > MAXIMUM_POOLED_BUFFER_SIZE) {
+      return;
+    }
+    if (mPooledCount.incrementAndGet() > mMaximumPooledCount) {
+      mPooledCount.decrementAndGet();
+      return;
+    }
+    mBuffers.offer(buffer);
+  }
+
+  public void clear() {
+    mBuffers.clear();
+    mPooledCount.set(0);
+  }
+
+  public static class Buffer {
+
+    private byte[] mData = new byte[INITIAL_BUFFER_SIZE];
+    private int mLength;
+
+    public byte[] getData() {
+      return mData;
+    }
+
+    public int getLength() {
+      return mLength;
+    }
+
+    /**
+     * Reads the stream to the end, growing as needed.  The stream is not closed.
+     *
+     * @param stream The stream to read.
+     * @throws IOException If the stream throws while reading.
+     */
+    public void readFrom(InputStream stream) throws IOException {
+      mLength = 0;
+      int read;
+      while ((read = stream.read(mData, mLength, mData.length - mLength)) != -1) {
+        mLength += read;
+        if (mLength == mData.length) {
+          mData = Arrays.copyOf(mData, mData.length * 2);
+        }
+      }
+    }
+
+    public InputStream toInputStream() {
+      return new ByteArrayInputStream(mData, 0, mLength);
+    }
+
+  }
+
+}
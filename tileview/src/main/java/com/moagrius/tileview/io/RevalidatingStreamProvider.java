@@ -0,0 +1,27 @@
+package com.moagrius.tileview.io;
+
+import android.content.Context;
+
+import java.io.InputStream;
+
+/**
+ * A StreamProvider whose tiles can go stale, and that can ask its source whether one has changed.  With
+ * DiskCachePolicy.CACHE_ALL and a disk cache max age (see TileView.Builder.setDiskCacheMaxAge), tiles are stored with
+ * their validators and revalidated once they're older than that.
+ */
+public interface RevalidatingStreamProvider extends StreamProvider {
+
+  /**
+   * @param stream A stream this provider returned from getStream.
+   * @return The validators that came with it, or null if there weren't any.
+   */
+  Validators getValidators(InputStream stream);
+
+  /**
+   * Makes a conditional request for a tile.
+   *
+   * @return The changed tile (getValidators works on it as it does for getStream), or null if it hasn't changed.
+   */
+  InputStream getStreamIfModified(int column, int row, Context context, Object data, Validators validators) throws Exception;
+
+}
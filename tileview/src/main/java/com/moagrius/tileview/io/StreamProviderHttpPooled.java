@@ -0,0 +1,182 @@
+package com.moagrius.tileview.io;
+
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Fetches tiles over HTTP, like StreamProviderHttp, but behaves better against a real tile server:
+ *
+ * - connect and read timeouts, so a stalled request fails (and can be retried) instead of holding a thread forever
+ * - at most a few requests in flight per host, so a CDN sees a handful of reused connections rather than churn
+ * - the whole body is read into a pooled buffer before it's handed back, so the connection goes back to the keep-alive
+ *   pool as soon as possible and the decode never waits on the network
+ *
+ * Connection reuse is HttpURLConnection's own keep-alive pool; a connection is returned to it when its body has been
+ * read to the end and the stream closed, which is what this provider does for every response, errors included.
+ * HttpURLConnection speaks HTTP/1.1, so requests aren't multiplexed - the per-host limit is what keeps the number of
+ * connections down.  The pool holds 5 idle connections per host by default (the http.maxConnections system property),
+ * so limits above that will open connections that aren't kept.
+ *
+ * 404s throw FileNotFoundException, which isn't retried.
+ *
+ * Responses keep their ETag and Last-Modified headers, so tiles cached to disk can be revalidated with a conditional
+ * request (see RevalidatingStreamProvider).
+ */
+public class StreamProviderHttpPooled implements RevalidatingStreamProvider {
+
+  public static final int DEFAULT_CONNECT_TIMEOUT = 10 * 1000;
+  public static final int DEFAULT_READ_TIMEOUT = 15 * 1000;
+  public static final int DEFAULT_MAXIMUM_REQUESTS_PER_HOST = 2;
+  private static final int MAXIMUM_POOLED_BUFFERS = 16;
+
+  private final int mConnectTimeout;
+  private final int mReadTimeout;
+  private final int mMaximumRequestsPerHost;
+  private final BufferPool mBufferPool = new BufferPool(MAXIMUM_POOLED_BUFFERS);
+  private final ConcurrentMap<String, Semaphore> mHostPermits = new ConcurrentHashMap<>();
+
+  /**
+   * @param connectTimeout Milliseconds to wait for a connection.
+   * @param readTimeout Milliseconds to wait for data once connected.
+   * @param maximumRequestsPerHost How many requests may be in flight to one host (and port) at a time.
+   */
+  public StreamProviderHttpPooled(int connectTimeout, int readTimeout, int maximumRequestsPerHost) {
+    mConnectTimeout = connectTimeout;
+    mReadTimeout = readTimeout;
+    mMaximumRequestsPerHost = maximumRequestsPerHost;
+  }
+
+  public StreamProviderHttpPooled() {
+    this(DEFAULT_CONNECT_TIMEOUT, DEFAULT_READ_TIMEOUT, DEFAULT_MAXIMUM_REQUESTS_PER_HOST);
+  }
+
+  @Override
+  public InputStream getStream(int column, int row, Context context, Object data) throws Exception {
+    return getStreamIfModified(column, row, context, data, null);
+  }
+
+  @Override
+  public InputStream getStreamIfModified(int column, int row, Context context, Object data, Validators validators) throws Exception {
+    URL url = new URL(String.format(Locale.US, (String) data, column, row));
+    Semaphore permits = getPermits(url);
+    permits.acquire();
+    try {
+      return fetch(url, validators);
+    } finally {
+      permits.release();
+    }
+  }
+
+  @Override
+  public Validators getValidators(InputStream stream) {
+    return stream instanceof PooledBufferInputStream ? ((PooledBufferInputStream) stream).mValidators : null;
+  }
+
+  private Semaphore getPermits(URL url) {
+    String host = url.getHost() + ":" + url.getPort();
+    Semaphore permits = mHostPermits.get(host);
+    if (permits == null) {
+      Semaphore created = new Semaphore(mMaximumRequestsPerHost, true);
+      permits = mHostPermits.putIfAbsent(host, created);
+      if (permits == null) {
+        permits = created;
+      }
+    }
+    return permits;
+  }
+
+  private InputStream fetch(URL url, Validators validators) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+    connection.setConnectTimeout(mConnectTimeout);
+    connection.setReadTimeout(mReadTimeout);
+    connection.setUseCaches(false);
+    if (validators != null) {
+      if (validators.getEntityTag() != null) {
+        connection.setRequestProperty("If-None-Match", validators.getEntityTag());
+      }
+      if (validators.getLastModified() != null) {
+        connection.setRequestProperty("If-Modified-Since", validators.getLastModified());
+      }
+    }
+    int code = connection.getResponseCode();
+    if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+      drain(connection.getInputStream());
+      return null;
+    }
+    if (code >= HttpURLConnection.HTTP_BAD_REQUEST) {
+      // read the error body out too, or the connection can't be reused
+      drain(connection.getErrorStream());
+      if (code == HttpURLConnection.HTTP_NOT_FOUND) {
+        throw new FileNotFoundException("No tile at " + url);
+      }
+      throw new IOException("HTTP " + code + " for " + url);
+    }
+    InputStream stream = connection.getInputStream();
+    BufferPool.Buffer buffer = mBufferPool.obtain();
+    try {
+      buffer.readFrom(stream);
+    } catch (IOException e) {
+      mBufferPool.release(buffer);
+      // a body cut off partway leaves the connection in an unknown state, don't reuse it
+      connection.disconnect();
+      throw e;
+    } finally {
+      stream.close();
+    }
+    Validators received = new Validators(connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"), System.currentTimeMillis());
+    return new PooledBufferInputStream(buffer, received);
+  }
+
+  private void drain(InputStream stream) {
+    if (stream == null) {
+      return;
+    }
+    BufferPool.Buffer buffer = mBufferPool.obtain();
+    try {
+      buffer.readFrom(stream);
+    } catch (IOException e) {
+      // no op, the connection just won't be reused
+    } finally {
+      mBufferPool.release(buffer);
+      try {
+        stream.close();
+      } catch (IOException e) {
+        // no op
+      }
+    }
+  }
+
+  // hands the buffer back to the pool when the decoder is done with it
+  private class PooledBufferInputStream extends ByteArrayInputStream {
+
+    private final Validators mValidators;
+    private BufferPool.Buffer mBuffer;
+
+    PooledBufferInputStream(BufferPool.Buffer buffer, Validators validators) {
+      super(buffer.getData(), 0, buffer.getLength());
+      mBuffer = buffer;
+      mValidators = validators;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      super.close();
+      if (mBuffer != null) {
+        mBufferPool.release(mBuffer);
+        mBuffer = null;
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,137 @@
+package com.moagrius.tileview.io;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteStatement;
+import android.os.ParcelFileDescriptor;
+
+import com.moagrius.tileview.TileView;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads tiles straight out of an MBTiles (SQLite) file, without extracting them first.
+ *
+ * Each Detail's data is the MBTiles zoom level (an Integer).  MBTiles zoom levels count up as detail increases, and
+ * TileView's count down, so the most detailed MBTiles zoom is TileView zoom 0; defineZoomLevels sets that up.
+ *
+ * MBTiles rows are numbered from the bottom (TMS), so rows are flipped on the way in.
+ *
+ * A single SQLiteDatabase hands its one connection to one thread at a time, so each decode thread opens its own
+ * read-only connection and keeps its compiled statement, and reads run in parallel.
+ */
+public class StreamProviderMBTiles implements StreamProvider {
+
+  private static final String TILE_QUERY = "SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?";
+  private static final String ZOOM_RANGE_QUERY = "SELECT MIN(zoom_level), MAX(zoom_level) FROM tiles";
+  private static final int OPEN_FLAGS = SQLiteDatabase.OPEN_READONLY | SQLiteDatabase.NO_LOCALIZED_COLLATORS;
+
+  private final String mPath;
+
+  private final ThreadLocal<Connection> mConnections = new ThreadLocal<>();
+
+  // every connection opened by any thread, so they can all be closed from one place
+  private final List<Connection> mOpenedConnections = new ArrayList<>();
+
+  public StreamProviderMBTiles(File file) {
+    mPath = file.getAbsolutePath();
+  }
+
+  /**
+   * Defines a TileView zoom level for each MBTiles zoom level from maximumZoom down to minimumZoom.
+   */
+  public static void defineZoomLevels(TileView.Builder builder, int minimumZoom, int maximumZoom) {
+    for (int zoom = maximumZoom; zoom >= minimumZoom; zoom--) {
+      builder.defineZoomLevel(maximumZoom - zoom, zoom);
+    }
+  }
+
+  /**
+   * Reads the lowest and highest zoom levels with tiles.  This is a query over the whole tiles table, so call it off
+   * the main thread (or store the range with the file).
+   *
+   * @return The minimum and maximum zoom levels, or null if there are no tiles.
+   */
+  public int[] readZoomRange() {
+    SQLiteDatabase database = SQLiteDatabase.openDatabase(mPath, null, OPEN_FLAGS);
+    Cursor cursor = null;
+    try {
+      cursor = database.rawQuery(ZOOM_RANGE_QUERY, null);
+      if (cursor.moveToFirst() && !cursor.isNull(0)) {
+        return new int[]{cursor.getInt(0), cursor.getInt(1)};
+      }
+      return null;
+    } finally {
+      if (cursor != null) {
+        cursor.close();
+      }
+      database.close();
+    }
+  }
+
+  @Override
+  public InputStream getStream(int column, int row, Context context, Object data) throws Exception {
+    int zoom = ((Number) data).intValue();
+    SQLiteStatement statement = getConnection().mStatement;
+    statement.bindLong(1, zoom);
+    statement.bindLong(2, column);
+    statement.bindLong(3, (1 << zoom) - 1 - row);
+    try {
+      ParcelFileDescriptor descriptor = statement.simpleQueryForBlobFileDescriptor();
+      if (descriptor == null) {
+        throw new FileNotFoundException("Empty tile at zoom " + zoom + ", column " + column + ", row " + row + " in " + mPath);
+      }
+      return new ParcelFileDescriptor.AutoCloseInputStream(descriptor);
+    } catch (SQLiteDoneException e) {
+      throw new FileNotFoundException("No tile at zoom " + zoom + ", column " + column + ", row " + row + " in " + mPath);
+    } finally {
+      statement.clearBindings();
+    }
+  }
+
+  private Connection getConnection() {
+    Connection connection = mConnections.get();
+    if (connection != null && connection.mDatabase.isOpen()) {
+      return connection;
+    }
+    SQLiteDatabase database = SQLiteDatabase.openDatabase(mPath, null, OPEN_FLAGS);
+    connection = new Connection(database, database.compileStatement(TILE_QUERY));
+    mConnections.set(connection);
+    synchronized (mOpenedConnections) {
+      mOpenedConnections.add(connection);
+    }
+    return connection;
+  }
+
+  /**
+   * Closes every connection.  Threads that read again afterwards open new ones.
+   */
+  public void close() {
+    synchronized (mOpenedConnections) {
+      for (Connection connection : mOpenedConnections) {
+        connection.mStatement.close();
+        connection.mDatabase.close();
+      }
+      mOpenedConnections.clear();
+    }
+  }
+
+  private static class Connection {
+
+    private final SQLiteDatabase mDatabase;
+    private final SQLiteStatement mStatement;
+
+    Connection(SQLiteDatabase database, SQLiteStatement statement) {
+      mDatabase = database;
+      mStatement = statement;
+    }
+
+  }
+
+}
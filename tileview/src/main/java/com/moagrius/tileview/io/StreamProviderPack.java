@@ -0,0 +1,165 @@
+package com.moagrius.tileview.io;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Serves tiles out of a single tile pack file (see TilePackFormat), rather than one file per tile.
+ *
+ * The pack is memory mapped once, on first use, and its index read into primitive arrays.  After that a tile is a
+ * binary search and a view of the mapped buffer: no open, no format, no per-tile buffer.
+ *
+ * Each Detail's data is the zoom the tiles were packed under (an Integer), e.g.,
+ * builder.defineZoomLevel(0, 0).defineZoomLevel(1, 1).
+ *
+ * Packs are mapped whole, so must be under 2GB.
+ */
+public class StreamProviderPack implements StreamProvider {
+
+  private final File mFile;
+  private volatile ByteBuffer mBuffer;
+  private long[] mKeys;
+  private int[] mOffsets;
+  private int[] mLengths;
+
+  public StreamProviderPack(File file) {
+    mFile = file;
+  }
+
+  @Override
+  public InputStream getStream(int column, int row, Context context, Object data) throws Exception {
+    ByteBuffer buffer = getBuffer();
+    int zoom = ((Number) data).intValue();
+    int index = Arrays.binarySearch(mKeys, TilePackFormat.getKey(zoom, column, row));
+    if (index < 0) {
+      throw new FileNotFoundException("No tile at zoom " + zoom + ", column " + column + ", row " + row + " in " + mFile);
+    }
+    // each caller gets its own position and limit over the shared mapping
+    ByteBuffer slice = buffer.duplicate();
+    slice.position(mOffsets[index]);
+    slice.limit(mOffsets[index] + mLengths[index]);
+    return new ByteBufferInputStream(slice);
+  }
+
+  /**
+   * @return How many tiles are in the pack, opening it if it isn't already.
+   */
+  public int getTileCount() throws IOException {
+    getBuffer();
+    return mKeys.length;
+  }
+
+  private ByteBuffer getBuffer() throws IOException {
+    ByteBuffer buffer = mBuffer;
+    if (buffer == null) {
+      synchronized (this) {
+        buffer = mBuffer;
+        if (buffer == null) {
+          buffer = open();
+          // the index arrays are published along with the buffer
+          mBuffer = buffer;
+        }
+      }
+    }
+    return buffer;
+  }
+
+  private ByteBuffer open() throws IOException {
+    RandomAccessFile file = new RandomAccessFile(mFile, "r");
+    try {
+      FileChannel channel = file.getChannel();
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Tile packs over 2GB aren't supported: " + mFile);
+      }
+      // the mapping stays valid after the channel is closed
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      readIndex(buffer, size);
+      return buffer;
+    } finally {
+      file.close();
+    }
+  }
+
+  private void readIndex(ByteBuffer buffer, long size) throws IOException {
+    if (size < TilePackFormat.HEADER_SIZE || buffer.getInt(0) != TilePackFormat.MAGIC) {
+      throw new IOException("Not a tile pack: " + mFile);
+    }
+    int version = buffer.getInt(4);
+    if (version != TilePackFormat.VERSION) {
+      throw new IOException("Unsupported tile pack version " + version + ": " + mFile);
+    }
+    int count = buffer.getInt(8);
+    if (count < 0 || TilePackFormat.HEADER_SIZE + (long) count * TilePackFormat.INDEX_ENTRY_SIZE > size) {
+      throw new IOException("Corrupt tile pack index: " + mFile);
+    }
+    long[] keys = new long[count];
+    int[] offsets = new int[count];
+    int[] lengths = new int[count];
+    int position = TilePackFormat.HEADER_SIZE;
+    for (int i = 0; i < count; i++) {
+      keys[i] = buffer.getLong(position);
+      long offset = buffer.getLong(position + 8);
+      int length = buffer.getInt(position + 16);
+      if (offset < 0 || length < 0 || offset + length > size) {
+        throw new IOException("Corrupt tile pack index: " + mFile);
+      }
+      offsets[i] = (int) offset;
+      lengths[i] = length;
+      position += TilePackFormat.INDEX_ENTRY_SIZE;
+    }
+    mKeys = keys;
+    mOffsets = offsets;
+    mLengths = lengths;
+  }
+
+  private static class ByteBufferInputStream extends InputStream {
+
+    private final ByteBuffer mBuffer;
+
+    ByteBufferInputStream(ByteBuffer buffer) {
+      mBuffer = buffer;
+    }
+
+    @Override
+    public int read() {
+      return mBuffer.hasRemaining() ? mBuffer.get() & 0xFF : -1;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) {
+      if (length == 0) {
+        return 0;
+      }
+      if (!mBuffer.hasRemaining()) {
+        return -1;
+      }
+      length = Math.min(length, mBuffer.remaining());
+      mBuffer.get(bytes, offset, length);
+      return length;
+    }
+
+    @Override
+    public long skip(long count) {
+      int skipped = (int) Math.max(0, Math.min(count, mBuffer.remaining()));
+      mBuffer.position(mBuffer.position() + skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() {
+      return mBuffer.remaining();
+    }
+
+  }
+
+}
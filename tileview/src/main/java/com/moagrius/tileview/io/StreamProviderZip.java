@@ -0,0 +1,427 @@
+package com.moagrius.tileview.io;
+
+import android.content.Context;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Serves tiles out of a ZIP archive (or an OBB expansion file, which is one), where each Detail's data is a path
+ * template inside the archive, like the stock providers', e.g., "tiles/1000/%d_%d.png".
+ *
+ * The central directory is read once, on first use.  The first request for a template walks the entry names once and
+ * keeps a sorted array of column, row and entry, so a tile after that is a binary search.  Entries are read with
+ * positional reads on one shared channel, so threads don't contend for a file pointer.  Stored entries are served as
+ * they are, deflated entries are inflated with Inflaters from a small pool.
+ *
+ * ZIP64 archives (over 4GB or 65535 entries) and encrypted entries aren't supported.
+ */
+public class StreamProviderZip implements StreamProvider {
+
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int MAXIMUM_COMMENT_SIZE = 0xFFFF;
+  private static final int CENTRAL_DIRECTORY_SIGNATURE = 0x02014b50;
+  private static final int CENTRAL_DIRECTORY_ENTRY_SIZE = 46;
+  private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+  private static final int LOCAL_HEADER_SIZE = 30;
+  private static final int FLAG_ENCRYPTED = 1;
+  private static final int FLAG_UTF8 = 1 << 11;
+  private static final int METHOD_STORED = 0;
+  private static final int METHOD_DEFLATED = 8;
+  private static final long UNSIGNED_INT_MASK = 0xFFFFFFFFL;
+  private static final int MAXIMUM_POOLED_INFLATERS = 8;
+  private static final int INFLATER_BUFFER_SIZE = 8 * 1024;
+  // template index entries: column (24 bits), row (24 bits), entry (16 bits, there are no more without ZIP64)
+  private static final int COLUMN_SHIFT = 40;
+  private static final int ROW_SHIFT = 16;
+  private static final int MAXIMUM_COORDINATE = 0xFFFFFF;
+  private static final long ENTRY_MASK = 0xFFFF;
+
+  private static final Charset UTF8 = Charset.forName("UTF-8");
+  private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+  private final File mFile;
+  private final Queue<Inflater> mInflaters = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger mPooledInflaterCount = new AtomicInteger();
+  private final Map<Object, long[]> mTemplateIndexes = new HashMap<>();
+
+  private volatile FileChannel mChannel;
+  private RandomAccessFile mRandomAccessFile;
+  private String[] mNames;
+  private int[] mMethods;
+  private long[] mCompressedSizes;
+  private long[] mLocalHeaderOffsets;
+  // where each entry's data starts, past its local header, read the first time it's needed (0 until then)
+  private AtomicLongArray mDataOffsets;
+
+  public StreamProviderZip(File file) {
+    mFile = file;
+  }
+
+  @Override
+  public InputStream getStream(int column, int row, Context context, Object data) throws Exception {
+    FileChannel channel = getChannel();
+    int entry = findEntry(getTemplateIndex(data), column, row);
+    if (entry == -1) {
+      throw new FileNotFoundException("No tile for " + data + " at column " + column + ", row " + row + " in " + mFile);
+    }
+    InputStream stream = new ChannelInputStream(channel, getDataOffset(channel, entry), mCompressedSizes[entry]);
+    if (mMethods[entry] == METHOD_STORED) {
+      return stream;
+    }
+    return new PooledInflaterInputStream(stream, obtainInflater());
+  }
+
+  /**
+   * Closes the archive and lets go of the index and pooled Inflaters.  The next request opens it again.
+   */
+  public synchronized void close() throws IOException {
+    if (mRandomAccessFile != null) {
+      mRandomAccessFile.close();
+      mRandomAccessFile = null;
+    }
+    mChannel = null;
+    synchronized (mTemplateIndexes) {
+      mTemplateIndexes.clear();
+    }
+    Inflater inflater;
+    while ((inflater = mInflaters.poll()) != null) {
+      inflater.end();
+    }
+    mPooledInflaterCount.set(0);
+  }
+
+  private FileChannel getChannel() throws IOException {
+    FileChannel channel = mChannel;
+    if (channel == null) {
+      synchronized (this) {
+        channel = mChannel;
+        if (channel == null) {
+          RandomAccessFile file = new RandomAccessFile(mFile, "r");
+          try {
+            readCentralDirectory(file.getChannel());
+          } catch (IOException e) {
+            file.close();
+            throw e;
+          }
+          mRandomAccessFile = file;
+          // the index arrays are published along with the channel
+          channel = mChannel = file.getChannel();
+        }
+      }
+    }
+    return channel;
+  }
+
+  private void readCentralDirectory(FileChannel channel) throws IOException {
+    long size = channel.size();
+    int tailSize = (int) Math.min(size, END_OF_CENTRAL_DIRECTORY_SIZE + MAXIMUM_COMMENT_SIZE);
+    ByteBuffer tail = read(channel, size - tailSize, tailSize);
+    int end = -1;
+    for (int i = tailSize - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (tail.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        end = i;
+        break;
+      }
+    }
+    if (end == -1) {
+      throw new IOException("Not a zip archive: " + mFile);
+    }
+    int count = tail.getShort(end + 10) & 0xFFFF;
+    long directorySize = tail.getInt(end + 12) & UNSIGNED_INT_MASK;
+    long directoryOffset = tail.getInt(end + 16) & UNSIGNED_INT_MASK;
+    if (count == 0xFFFF || directoryOffset == UNSIGNED_INT_MASK || directoryOffset + directorySize > size) {
+      throw new IOException("ZIP64 archives aren't supported: " + mFile);
+    }
+    ByteBuffer directory = read(channel, directoryOffset, (int) directorySize);
+    String[] names = new String[count];
+    int[] methods = new int[count];
+    long[] compressedSizes = new long[count];
+    long[] localHeaderOffsets = new long[count];
+    int position = 0;
+    for (int i = 0; i < count; i++) {
+      if (position + CENTRAL_DIRECTORY_ENTRY_SIZE > directorySize || directory.getInt(position) != CENTRAL_DIRECTORY_SIGNATURE) {
+        throw new IOException("Corrupt zip central directory: " + mFile);
+      }
+      int flags = directory.getShort(position + 8) & 0xFFFF;
+      int method = directory.getShort(position + 10) & 0xFFFF;
+      int nameLength = directory.getShort(position + 28) & 0xFFFF;
+      int extraLength = directory.getShort(position + 30) & 0xFFFF;
+      int commentLength = directory.getShort(position + 32) & 0xFFFF;
+      // entries we can't read are left unnamed, so no template matches them
+      if ((flags & FLAG_ENCRYPTED) == 0 && (method == METHOD_STORED || method == METHOD_DEFLATED)) {
+        byte[] name = new byte[nameLength];
+        directory.position(position + CENTRAL_DIRECTORY_ENTRY_SIZE);
+        directory.get(name);
+        names[i] = new String(name, (flags & FLAG_UTF8) != 0 ? UTF8 : ISO_8859_1);
+      }
+      methods[i] = method;
+      compressedSizes[i] = directory.getInt(position + 20) & UNSIGNED_INT_MASK;
+      localHeaderOffsets[i] = directory.getInt(position + 42) & UNSIGNED_INT_MASK;
+      position += CENTRAL_DIRECTORY_ENTRY_SIZE + nameLength + extraLength + commentLength;
+    }
+    mNames = names;
+    mMethods = methods;
+    mCompressedSizes = compressedSizes;
+    mLocalHeaderOffsets = localHeaderOffsets;
+    mDataOffsets = new AtomicLongArray(count);
+  }
+
+  // the local header's name and extra lengths can differ from the central directory's, so it has to be read
+  private long getDataOffset(FileChannel channel, int entry) throws IOException {
+    long offset = mDataOffsets.get(entry);
+    if (offset == 0) {
+      ByteBuffer header = read(channel, mLocalHeaderOffsets[entry], LOCAL_HEADER_SIZE);
+      if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+        throw new IOException("Corrupt zip entry " + mNames[entry] + ": " + mFile);
+      }
+      int nameLength = header.getShort(26) & 0xFFFF;
+      int extraLength = header.getShort(28) & 0xFFFF;
+      offset = mLocalHeaderOffsets[entry] + LOCAL_HEADER_SIZE + nameLength + extraLength;
+      mDataOffsets.set(entry, offset);
+    }
+    return offset;
+  }
+
+  private long[] getTemplateIndex(Object template) {
+    synchronized (mTemplateIndexes) {
+      long[] index = mTemplateIndexes.get(template);
+      if (index == null) {
+        index = buildTemplateIndex(template.toString());
+        mTemplateIndexes.put(template, index);
+      }
+      return index;
+    }
+  }
+
+  private long[] buildTemplateIndex(String template) {
+    Template compiled = new Template(template);
+    Matcher matcher = compiled.mPattern.matcher("");
+    long[] index = new long[mNames.length];
+    int count = 0;
+    for (int i = 0; i < mNames.length; i++) {
+      if (mNames[i] == null || !matcher.reset(mNames[i]).matches()) {
+        continue;
+      }
+      try {
+        int column = Integer.parseInt(matcher.group(compiled.mColumnGroup));
+        int row = Integer.parseInt(matcher.group(compiled.mRowGroup));
+        if (column <= MAXIMUM_COORDINATE && row <= MAXIMUM_COORDINATE) {
+          index[count++] = ((long) column << COLUMN_SHIFT) | ((long) row << ROW_SHIFT) | i;
+        }
+      } catch (NumberFormatException e) {
+        // too many digits for an int, not a tile
+      }
+    }
+    index = Arrays.copyOf(index, count);
+    Arrays.sort(index);
+    return index;
+  }
+
+  private static int findEntry(long[] index, int column, int row) {
+    if (column < 0 || row < 0 || column > MAXIMUM_COORDINATE || row > MAXIMUM_COORDINATE) {
+      return -1;
+    }
+    long prefix = ((long) column << COLUMN_SHIFT) | ((long) row << ROW_SHIFT);
+    // the entry bits sort after the bare prefix, so the insertion point is the first entry for this tile
+    int position = Arrays.binarySearch(index, prefix);
+    if (position < 0) {
+      position = -position - 1;
+    }
+    if (position < index.length && (index[position] & ~ENTRY_MASK) == prefix) {
+      return (int) (index[position] & ENTRY_MASK);
+    }
+    return -1;
+  }
+
+  private Inflater obtainInflater() {
+    Inflater inflater = mInflaters.poll();
+    if (inflater == null) {
+      // raw deflate, zip entries have no zlib header
+      return new Inflater(true);
+    }
+    mPooledInflaterCount.decrementAndGet();
+    return inflater;
+  }
+
+  private void releaseInflater(Inflater inflater) {
+    if (mPooledInflaterCount.incrementAndGet() > MAXIMUM_POOLED_INFLATERS) {
+      mPooledInflaterCount.decrementAndGet();
+      inflater.end();
+      return;
+    }
+    inflater.reset();
+    mInflaters.offer(inflater);
+  }
+
+  private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, position + buffer.position()) == -1) {
+        throw new EOFException("Unexpected end of zip archive");
+      }
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * A String.format template turned into a pattern with a group each for the column and row.  Supports %d and %s in
+   * order (column, then row), the positional %1$d and %2$d, and %%.
+   */
+  static class Template {
+
+    final Pattern mPattern;
+    final int mColumnGroup;
+    final int mRowGroup;
+
+    Template(String template) {
+      StringBuilder regex = new StringBuilder();
+      int[] groupArguments = new int[2];
+      int groups = 0;
+      int sequential = 0;
+      int literalStart = 0;
+      int i = 0;
+      while (i < template.length()) {
+        if (template.charAt(i) != '%') {
+          i++;
+          continue;
+        }
+        if (i > literalStart) {
+          regex.append(Pattern.quote(template.substring(literalStart, i)));
+        }
+        int end = i + 1;
+        if (end < template.length() && template.charAt(end) == '%') {
+          regex.append('%');
+          literalStart = i = end + 1;
+          continue;
+        }
+        int argument;
+        if (end + 2 < template.length() && Character.isDigit(template.charAt(end)) && template.charAt(end + 1) == '$') {
+          argument = template.charAt(end) - '1';
+          end += 2;
+        } else {
+          argument = sequential++;
+        }
+        if (end >= template.length() || "ds".indexOf(template.charAt(end)) == -1 || argument < 0 || argument > 1 || groups > 1) {
+          throw new IllegalArgumentException("Unsupported tile path template: " + template);
+        }
+        groupArguments[groups++] = argument;
+        regex.append("(\\d+)");
+        literalStart = i = end + 1;
+      }
+      if (literalStart < template.length()) {
+        regex.append(Pattern.quote(template.substring(literalStart)));
+      }
+      if (groups != 2 || groupArguments[0] == groupArguments[1]) {
+        throw new IllegalArgumentException("Tile path templates need a column and a row: " + template);
+      }
+      mPattern = Pattern.compile(regex.toString());
+      // argument 0 is the column, whichever order they appear in the name
+      mColumnGroup = groupArguments[0] == 0 ? 1 : 2;
+      mRowGroup = 3 - mColumnGroup;
+    }
+
+  }
+
+  private static class ChannelInputStream extends InputStream {
+
+    private final FileChannel mChannel;
+    private long mPosition;
+    private long mRemaining;
+
+    ChannelInputStream(FileChannel channel, long position, long length) {
+      mChannel = channel;
+      mPosition = position;
+      mRemaining = length;
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] single = new byte[1];
+      return read(single, 0, 1) == -1 ? -1 : single[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (mRemaining <= 0) {
+        return -1;
+      }
+      ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, (int) Math.min(length, mRemaining));
+      int read = mChannel.read(buffer, mPosition);
+      if (read == -1) {
+        throw new EOFException("Unexpected end of zip entry");
+      }
+      mPosition += read;
+      mRemaining -= read;
+      return read;
+    }
+
+    @Override
+    public int available() {
+      return (int) Math.min(Integer.MAX_VALUE, mRemaining);
+    }
+
+  }
+
+  private class PooledInflaterInputStream extends InflaterInputStream {
+
+    private boolean mIsInputExhausted;
+    private boolean mIsClosed;
+
+    PooledInflaterInputStream(InputStream stream, Inflater inflater) {
+      super(stream, inflater, INFLATER_BUFFER_SIZE);
+    }
+
+    // raw inflate needs one byte past the end of the data, as java.util.zip.ZipFile does
+    @Override
+    protected void fill() throws IOException {
+      if (mIsInputExhausted) {
+        throw new EOFException("Unexpected end of zip entry");
+      }
+      len = in.read(buf, 0, buf.length);
+      if (len == -1) {
+        buf[0] = 0;
+        len = 1;
+        mIsInputExhausted = true;
+      }
+      inf.setInput(buf, 0, len);
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (mIsClosed) {
+        return;
+      }
+      mIsClosed = true;
+      // a stream built with its own Inflater doesn't end it on close, so it can go back to the pool
+      super.close();
+      releaseInflater(inf);
+    }
+
+  }
+
+}
@@ -0,0 +1,45 @@
+package com.moagrius.tileview.io;
+
+/**
+ * The layout of a tile pack, a single file holding many tiles.  Everything is big-endian:
+ *
+ * HEADER (16 bytes)
+ * int      magic, "TVPK"
+ * int      version
+ * int      entry count
+ * int      reserved, 0
+ *
+ * INDEX (20 bytes per entry, sorted by key)
+ * long     key, see getKey
+ * long     offset of the tile from the start of the file
+ * int      length of the tile
+ *
+ * TILES
+ * the encoded tile files, as they were, back to back in index order
+ *
+ * Written by TilePackWriter, read by StreamProviderPack.  No Android dependencies, so the writer can run on a desktop
+ * JVM.
+ */
+public final class TilePackFormat {
+
+  public static final int MAGIC = 0x5456504B;
+  public static final int VERSION = 1;
+  public static final int HEADER_SIZE = 16;
+  public static final int INDEX_ENTRY_SIZE = 20;
+
+  private static final int ZOOM_SHIFT = 48;
+  private static final int COLUMN_SHIFT = 24;
+  private static final long COORDINATE_MASK = 0xFFFFFF;
+  private static final long ZOOM_MASK = 0xFFFF;
+
+  private TilePackFormat() {
+  }
+
+  /**
+   * @return A key that sorts by zoom, then column, then row.
+   */
+  public static long getKey(int zoom, int column, int row) {
+    return ((zoom & ZOOM_MASK) << ZOOM_SHIFT) | ((column & COORDINATE_MASK) << COLUMN_SHIFT) | (row & COORDINATE_MASK);
+  }
+
+}
@@ -0,0 +1,146 @@
+package com.moagrius.tileview.io;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Builds a tile pack (see TilePackFormat) from tile files.  Runs on a plain JVM, either from code:
+ *
+ * new TilePackWriter().addDirectory(0, new File("tiles/1000")).addDirectory(1, new File("tiles/500")).write(pack);
+ *
+ * or from the command line, with each directory given as zoom:path:
+ *
+ * java com.moagrius.tileview.io.TilePackWriter tiles.pack 0:tiles/1000 1:tiles/500
+ *
+ * Tile files in a directory are expected to end with their column and row and an image extension (png, jpg, jpeg or
+ * webp), like the stock providers' templates, e.g., "tile-12_7.png" or "12_7.jpg".  Other files are skipped.
+ */
+public class TilePackWriter {
+
+  private static final Pattern TILE_FILE_NAME = Pattern.compile("(\\d+)_(\\d+)\\.(png|jpe?g|webp)$", Pattern.CASE_INSENSITIVE);
+  private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+  private final List<Entry> mEntries = new ArrayList<>();
+
+  public TilePackWriter add(int zoom, int column, int row, File file) {
+    mEntries.add(new Entry(TilePackFormat.getKey(zoom, column, row), file));
+    return this;
+  }
+
+  public TilePackWriter addDirectory(int zoom, File directory) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Not a directory: " + directory);
+    }
+    for (File file : files) {
+      Matcher matcher = TILE_FILE_NAME.matcher(file.getName());
+      if (file.isFile() && matcher.find()) {
+        add(zoom, Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)), file);
+      }
+    }
+    return this;
+  }
+
+  public int getTileCount() {
+    return mEntries.size();
+  }
+
+  public void write(File output) throws IOException {
+    Collections.sort(mEntries);
+    for (int i = 1; i < mEntries.size(); i++) {
+      if (mEntries.get(i).mKey == mEntries.get(i - 1).mKey) {
+        throw new IOException("More than one tile at the same zoom, column and row: " + mEntries.get(i - 1).mFile + ", " + mEntries.get(i).mFile);
+      }
+    }
+    DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(output), COPY_BUFFER_SIZE));
+    try {
+      stream.writeInt(TilePackFormat.MAGIC);
+      stream.writeInt(TilePackFormat.VERSION);
+      stream.writeInt(mEntries.size());
+      stream.writeInt(0);
+      long offset = TilePackFormat.HEADER_SIZE + (long) mEntries.size() * TilePackFormat.INDEX_ENTRY_SIZE;
+      for (Entry entry : mEntries) {
+        long length = entry.mFile.length();
+        if (length > Integer.MAX_VALUE) {
+          throw new IOException("Tile too large: " + entry.mFile);
+        }
+        stream.writeLong(entry.mKey);
+        stream.writeLong(offset);
+        stream.writeInt((int) length);
+        offset += length;
+      }
+      byte[] buffer = new byte[COPY_BUFFER_SIZE];
+      for (Entry entry : mEntries) {
+        copy(entry, stream, buffer);
+      }
+    } finally {
+      stream.close();
+    }
+  }
+
+  // the index was written from File.length, so a tile that changed since would corrupt every offset after it
+  private static void copy(Entry entry, DataOutputStream stream, byte[] buffer) throws IOException {
+    long expected = entry.mFile.length();
+    long copied = 0;
+    InputStream input = new FileInputStream(entry.mFile);
+    try {
+      int read;
+      while ((read = input.read(buffer)) != -1) {
+        stream.write(buffer, 0, read);
+        copied += read;
+      }
+    } finally {
+      input.close();
+    }
+    if (copied != expected) {
+      throw new IOException("Tile changed while packing: " + entry.mFile);
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("usage: TilePackWriter <output> <zoom>:<directory> [<zoom>:<directory> ...]");
+      System.exit(1);
+    }
+    TilePackWriter writer = new TilePackWriter();
+    for (int i = 1; i < args.length; i++) {
+      int separator = args[i].indexOf(':');
+      if (separator == -1) {
+        System.err.println("expected <zoom>:<directory>, got " + args[i]);
+        System.exit(1);
+      }
+      writer.addDirectory(Integer.parseInt(args[i].substring(0, separator)), new File(args[i].substring(separator + 1)));
+    }
+    File output = new File(args[0]);
+    writer.write(output);
+    System.out.println("packed " + writer.getTileCount() + " tiles into " + output + " (" + output.length() + " bytes)");
+  }
+
+  private static class Entry implements Comparable<Entry> {
+
+    private final long mKey;
+    private final File mFile;
+
+    Entry(long key, File file) {
+      mKey = key;
+      mFile = file;
+    }
+
+    @Override
+    public int compareTo(Entry other) {
+      return mKey < other.mKey ? -1 : (mKey == other.mKey ? 0 : 1);
+    }
+
+  }
+
+}
@@ -0,0 +1,77 @@
+package com.moagrius.tileview.io;
+
+/**
+ * What's needed to ask a server whether a tile has changed since it was fetched: its ETag and Last-Modified headers,
+ * and when it was fetched (wall clock, since it's stored on disk across launches).
+ */
+public class Validators {
+
+  private static final char SEPARATOR = '\n';
+
+  private final String mEntityTag;
+  private final String mLastModified;
+  private final long mFetchedAt;
+
+  public Validators(String entityTag, String lastModified, long fetchedAt) {
+    mEntityTag = entityTag;
+    mLastModified = lastModified;
+    mFetchedAt = fetchedAt;
+  }
+
+  public String getEntityTag() {
+    return mEntityTag;
+  }
+
+  public String getLastModified() {
+    return mLastModified;
+  }
+
+  public long getFetchedAt() {
+    return mFetchedAt;
+  }
+
+  /**
+   * @return TRUE if there's anything to make a conditional request with.
+   */
+  public boolean canRevalidate() {
+    return mEntityTag != null || mLastModified != null;
+  }
+
+  /**
+   * @return The same validators, fetched now, for a response that said nothing changed.
+   */
+  public Validators refreshed(long now) {
+    return new Validators(mEntityTag, mLastModified, now);
+  }
+
+  /**
+   * @return The validators as one string, to be read back with fromString.
+   */
+  @Override
+  public String toString() {
+    return mFetchedAt + "" + SEPARATOR + (mEntityTag == null ? "" : mEntityTag) + SEPARATOR + (mLastModified == null ? "" : mLastModified);
+  }
+
+  /**
+   * @return The validators written by toString, or null if there aren't any (or they can't be read).
+   */
+  public static Validators fromString(String value) {
+    if (value == null) {
+      return null;
+    }
+    int first = value.indexOf(SEPARATOR);
+    int second = first == -1 ? -1 : value.indexOf(SEPARATOR, first + 1);
+    if (second == -1) {
+      return null;
+    }
+    try {
+      long fetchedAt = Long.parseLong(value.substring(0, first));
+      String entityTag = value.substring(first + 1, second);
+      String lastModified = value.substring(second + 1);
+      return new Validators(entityTag.isEmpty() ? null : entityTag, lastModified.isEmpty() ? null : lastModified, fetchedAt);
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+}
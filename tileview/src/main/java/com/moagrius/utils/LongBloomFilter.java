@@ -0,0 +1,86 @@
+package com.moagrius.utils;
+
+import java.util.Arrays;
+
+/**
+ * A Bloom filter over primitive long keys.  mightContain never returns false for a key that was put, and returns
+ * true for a key that wasn't about 1% of the time, as long as no more than the expected number of keys are put.
+ *
+ * Keys can't be removed, so a filter in front of a store that removes keys only gets less selective over time; call
+ * clear and put the live keys again when that matters.
+ *
+ * Not thread safe.
+ */
+public class LongBloomFilter {
+
+  // 10 bits and 7 probes per key is about a 1% false positive rate
+  private static final int BITS_PER_KEY = 10;
+  private static final int PROBE_COUNT = 7;
+  private static final int MINIMUM_BITS = 1024;
+
+  private final long[] mBits;
+  private final int mBitCount;
+  private final int mExpectedSize;
+  private int mSize;
+
+  public LongBloomFilter(int expectedSize) {
+    mExpectedSize = expectedSize;
+    long bitCount = Math.max(MINIMUM_BITS, (long) expectedSize * BITS_PER_KEY);
+    mBits = new long[(int) ((bitCount + 63) >>> 6)];
+    mBitCount = mBits.length << 6;
+  }
+
+  public void put(long key) {
+    long hash = mix(key);
+    int first = (int) hash;
+    int second = (int) (hash >>> 32) | 1;
+    for (int i = 0; i < PROBE_COUNT; i++) {
+      int bit = ((first + i * second) & Integer.MAX_VALUE) % mBitCount;
+      mBits[bit >>> 6] |= 1L << bit;
+    }
+    mSize++;
+  }
+
+  public boolean mightContain(long key) {
+    long hash = mix(key);
+    int first = (int) hash;
+    int second = (int) (hash >>> 32) | 1;
+    for (int i = 0; i < PROBE_COUNT; i++) {
+      int bit = ((first + i * second) & Integer.MAX_VALUE) % mBitCount;
+      if ((mBits[bit >>> 6] & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return How many keys have been put since the filter was created or cleared, counting repeats.
+   */
+  public int size() {
+    return mSize;
+  }
+
+  /**
+   * @return TRUE once more keys have been put than the filter was sized for, and false positives start to climb.
+   */
+  public boolean isSaturated() {
+    return mSize > mExpectedSize;
+  }
+
+  public void clear() {
+    Arrays.fill(mBits, 0);
+    mSize = 0;
+  }
+
+  // murmur3 fmix64, the same spread LongLruMap uses
+  private static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+}
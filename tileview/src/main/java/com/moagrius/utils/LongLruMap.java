@@ -0,0 +1,290 @@
+package com.moagrius.utils;
+
+import java.util.Arrays;
+
+/**
+ * A map of primitive long keys to values, ordered from least to most recently used, that doesn't allocate on get,
+ * put (short of growing), or remove.
+ *
+ * Entries live in an open-addressed table with linear probing.  Removal uses backward-shift deletion (entries later in
+ * the probe sequence are moved back into the gap) rather than tombstones, so lookups never slow down with churn.
+ * Recency is kept as a doubly linked list threaded through the table by slot index.
+ *
+ * Not thread safe.  Values may not be null.
+ */
+public class LongLruMap<V> {
+
+  private static final int NONE = -1;
+  private static final int MINIMUM_CAPACITY = 16;
+  // linear probing degrades quickly past this
+  private static final float LOAD_FACTOR = 0.5f;
+
+  private long[] mKeys;
+  private Object[] mValues;
+  private int[] mPrevious;
+  private int[] mNext;
+  private int mMask;
+  private int mSize;
+  private int mResizeThreshold;
+  private int mEldest = NONE;
+  private int mNewest = NONE;
+
+  public LongLruMap() {
+    this(MINIMUM_CAPACITY);
+  }
+
+  public LongLruMap(int expectedSize) {
+    int capacity = MINIMUM_CAPACITY;
+    while (capacity * LOAD_FACTOR < expectedSize) {
+      capacity <<= 1;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    mKeys = new long[capacity];
+    mValues = new Object[capacity];
+    mPrevious = new int[capacity];
+    mNext = new int[capacity];
+    mMask = capacity - 1;
+    mResizeThreshold = (int) (capacity * LOAD_FACTOR);
+  }
+
+  // murmur3 finalizer, packed keys differ mostly in their low bits per field
+  private static long mix(long key) {
+    key ^= key >>> 33;
+    key *= 0xff51afd7ed558ccdL;
+    key ^= key >>> 33;
+    key *= 0xc4ceb9fe1a85ec53L;
+    key ^= key >>> 33;
+    return key;
+  }
+
+  private int indexOf(long key) {
+    int slot = (int) mix(key) & mMask;
+    while (mValues[slot] != null) {
+      if (mKeys[slot] == key) {
+        return slot;
+      }
+      slot = (slot + 1) & mMask;
+    }
+    return NONE;
+  }
+
+  public int size() {
+    return mSize;
+  }
+
+  public boolean isEmpty() {
+    return mSize == 0;
+  }
+
+  public boolean containsKey(long key) {
+    return indexOf(key) != NONE;
+  }
+
+  /**
+   * Gets the value and marks it most recently used.
+   */
+  @SuppressWarnings("unchecked")
+  public V get(long key) {
+    int slot = indexOf(key);
+    if (slot == NONE) {
+      return null;
+    }
+    unlink(slot);
+    linkNewest(slot);
+    return (V) mValues[slot];
+  }
+
+  /**
+   * Gets the value without changing its recency.
+   */
+  @SuppressWarnings("unchecked")
+  public V peek(long key) {
+    int slot = indexOf(key);
+    return slot == NONE ? null : (V) mValues[slot];
+  }
+
+  /**
+   * @return The previous value for the key, or null.
+   */
+  @SuppressWarnings("unchecked")
+  public V put(long key, V value) {
+    if (value == null) {
+      throw new NullPointerException("LongLruMap does not allow null values");
+    }
+    int slot = (int) mix(key) & mMask;
+    while (mValues[slot] != null) {
+      if (mKeys[slot] == key) {
+        V previous = (V) mValues[slot];
+        mValues[slot] = value;
+        unlink(slot);
+        linkNewest(slot);
+        return previous;
+      }
+      slot = (slot + 1) & mMask;
+    }
+    mKeys[slot] = key;
+    mValues[slot] = value;
+    linkNewest(slot);
+    if (++mSize > mResizeThreshold) {
+      resize();
+    }
+    return null;
+  }
+
+  @SuppressWarnings("unchecked")
+  public V remove(long key) {
+    int slot = indexOf(key);
+    if (slot == NONE) {
+      return null;
+    }
+    V value = (V) mValues[slot];
+    removeSlot(slot);
+    return value;
+  }
+
+  /**
+   * @return The key of the least recently used entry.  Only meaningful if the map isn't empty.
+   */
+  public long getEldestKey() {
+    return mEldest == NONE ? 0 : mKeys[mEldest];
+  }
+
+  @SuppressWarnings("unchecked")
+  public V getEldestValue() {
+    return mEldest == NONE ? null : (V) mValues[mEldest];
+  }
+
+  @SuppressWarnings("unchecked")
+  public V removeEldest() {
+    if (mEldest == NONE) {
+      return null;
+    }
+    int slot = mEldest;
+    V value = (V) mValues[slot];
+    removeSlot(slot);
+    return value;
+  }
+
+  /**
+   * Walks from least to most recently used, and removes and returns the first value the matcher accepts.
+   */
+  @SuppressWarnings("unchecked")
+  public V removeEldestMatching(Matcher<V> matcher) {
+    for (int slot = mEldest; slot != NONE; slot = mNext[slot]) {
+      V value = (V) mValues[slot];
+      if (matcher.matches(value)) {
+        removeSlot(slot);
+        return value;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return Every key, from least to most recently used.
+   */
+  public long[] keys() {
+    long[] keys = new long[mSize];
+    int index = 0;
+    for (int slot = mEldest; slot != NONE; slot = mNext[slot]) {
+      keys[index++] = mKeys[slot];
+    }
+    return keys;
+  }
+
+  public void clear() {
+    Arrays.fill(mValues, null);
+    mSize = 0;
+    mEldest = NONE;
+    mNewest = NONE;
+  }
+
+  private void linkNewest(int slot) {
+    mPrevious[slot] = mNewest;
+    mNext[slot] = NONE;
+    if (mNewest != NONE) {
+      mNext[mNewest] = slot;
+    } else {
+      mEldest = slot;
+    }
+    mNewest = slot;
+  }
+
+  private void unlink(int slot) {
+    int previous = mPrevious[slot];
+    int next = mNext[slot];
+    if (previous != NONE) {
+      mNext[previous] = next;
+    } else {
+      mEldest = next;
+    }
+    if (next != NONE) {
+      mPrevious[next] = previous;
+    } else {
+      mNewest = previous;
+    }
+  }
+
+  private void removeSlot(int slot) {
+    unlink(slot);
+    mValues[slot] = null;
+    mSize--;
+    // backward-shift: pull back any later entry in this cluster whose ideal slot doesn't lie in (gap, entry]
+    int gap = slot;
+    int current = (slot + 1) & mMask;
+    while (mValues[current] != null) {
+      int ideal = (int) mix(mKeys[current]) & mMask;
+      boolean canMove = gap <= current ? (ideal <= gap || ideal > current) : (ideal <= gap && ideal > current);
+      if (canMove) {
+        move(current, gap);
+        gap = current;
+      }
+      current = (current + 1) & mMask;
+    }
+  }
+
+  // moves an entry to an empty slot, keeping its place in the recency list
+  private void move(int from, int to) {
+    mKeys[to] = mKeys[from];
+    mValues[to] = mValues[from];
+    mValues[from] = null;
+    int previous = mPrevious[from];
+    int next = mNext[from];
+    mPrevious[to] = previous;
+    mNext[to] = next;
+    if (previous != NONE) {
+      mNext[previous] = to;
+    } else {
+      mEldest = to;
+    }
+    if (next != NONE) {
+      mPrevious[next] = to;
+    } else {
+      mNewest = to;
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  private void resize() {
+    long[] keys = mKeys;
+    Object[] values = mValues;
+    int[] next = mNext;
+    int eldest = mEldest;
+    allocate(keys.length << 1);
+    mSize = 0;
+    mEldest = NONE;
+    mNewest = NONE;
+    // reinsert from eldest to newest, so recency survives
+    for (int slot = eldest; slot != NONE; slot = next[slot]) {
+      put(keys[slot], (V) values[slot]);
+    }
+  }
+
+  public interface Matcher<V> {
+    boolean matches(V value);
+  }
+
+}